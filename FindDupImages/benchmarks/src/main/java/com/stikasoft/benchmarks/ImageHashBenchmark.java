@@ -0,0 +1,117 @@
+package com.stikasoft.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stikasoft.imageutils.HashKernels;
+import com.stikasoft.imageutils.ImageHash;
+
+/***
+ * ImageHashBenchmark
+ * 
+ * Time to hash one image with each hash, and the steps the hashes are made of.
+ * imageSize is the short side of the image the hash is given. 256 is what the program loads photos at, larger
+ * sizes are what the hash gets when the loader can not subsample.
+ * 
+ * @author Carl Stika
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"--add-modules=jdk.incubator.vector"})
+public class ImageHashBenchmark {
+
+	@Param({"256", "1024", "4000"})
+	public int imageSize;
+	
+	@Param({"false", "true"})
+	public boolean vector;
+	
+	private ImageHash imageHash = new ImageHash();
+	private BufferedImage image;
+	private float[][] dctInput = new float[32][32];
+	private float[][] dctOutput = new float[32][32];
+	private long hash1;
+	private long hash2;
+	private String hashString1;
+	private String hashString2;
+	
+	@Setup
+	public void setup() {
+		HashKernels.setUseVector(vector);
+		image = SyntheticData.image(imageSize*3/2, imageSize, 1);
+		
+		BufferedImage other = SyntheticData.image(imageSize*3/2, imageSize, 2);
+		hash1 = imageHash.PerceptualHash64(image);
+		hash2 = imageHash.PerceptualHash64(other);
+		hashString1 = ImageHash.hashToString(hash1);
+		hashString2 = ImageHash.hashToString(hash2);
+		
+		for(int y=0;y<32;y++) {
+			for(int x=0;x<32;x++) {
+				dctInput[y][x] = (image.getRGB(x, y)&255);
+			}
+		}
+	}
+	
+	@Benchmark
+	public long averageHash() {
+		return imageHash.AverageHash64(image);
+	}
+	
+	@Benchmark
+	public long differenceHash() {
+		return imageHash.DifferenceHash64(image);
+	}
+	
+	@Benchmark
+	public long perceptualHash() {
+		return imageHash.PerceptualHash64(image);
+	}
+	
+	@Benchmark
+	public long[] cascadeHash() {
+		return imageHash.hashImageAll(image, ImageHash.CASCADE_HASH);
+	}
+	
+	@Benchmark
+	public long[] perceptualHashOrientations() {
+		return imageHash.hashImageOrientations(image, ImageHash.PERCEPTUAL_HASH);
+	}
+	
+	@Benchmark
+	public float[][] dct() {
+		imageHash.DCT(dctOutput, dctInput);
+		return dctOutput;
+	}
+	
+	@Benchmark
+	public BufferedImage scaleImage() {
+		return imageHash.scaleImage(image, 32, 32);
+	}
+	
+	@Benchmark
+	public int distanceBetweenHash() {
+		return imageHash.distanceBetweenHash(hash1, hash2);
+	}
+	
+	@Benchmark
+	public int distanceBetweenHashStrings() {
+		return imageHash.distanceBetweenHash(hashString1, hashString2);
+	}
+}
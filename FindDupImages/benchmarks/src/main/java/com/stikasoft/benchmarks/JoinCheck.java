@@ -0,0 +1,139 @@
+package com.stikasoft.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.stikasoft.imageutils.ExternalHashJoin;
+
+/***
+ * JoinCheck
+ *
+ * Checks the pairs found by ExternalHashJoin against comparing every pair of images. Not a benchmark, run it with
+ *   java -cp target/benchmarks.jar com.stikasoft.benchmarks.JoinCheck [numImages] [maxDistance]
+ *
+ * The images are random hashes with near copies of some of them, and a group of the same hash like blank images make.
+ * The memory budget is small so the hashes are written in many runs and the blank group is too big to join in memory. Exits with 1 if the pairs are not the same.
+ *
+ * @author Carl Stika
+ *
+ */
+public class JoinCheck {
+
+	private static final int NUM_HASHES = 2;
+	private static final int NUM_BLANK = 2000;
+	private static final long MEMORY_BUDGET = 16*1024;
+
+	public static void main(String[] args) throws Exception {
+		int numImages = (args.length>0) ? Integer.parseInt(args[0]) : 20000;
+		int maxDistance = (args.length>1) ? Integer.parseInt(args[1]) : 1;
+
+		long[][] hashes = images(numImages, maxDistance, new Random(1));
+
+		Path spillDir = Files.createTempDirectory("joincheck");
+		ExternalHashJoin hashJoin = ExternalHashJoin.create(spillDir, maxDistance, NUM_HASHES, MEMORY_BUDGET);
+		for(int i=0;i<hashes.length;i++) {
+			hashJoin.add("image" + i, hashes[i], i, i);
+		}
+		PairList joined = new PairList();
+		boolean ok = hashJoin.join() && hashJoin.forEachPair((fileId1, fileId2)->joined.add(((long)fileId1<<32) | fileId2));
+		System.out.printf("Join found %d pairs in %d comparisons, %d images joined a block at a time\n", joined.size, hashJoin.comparisons(), hashJoin.blockJoinedImages());
+		hashJoin.close();
+		Files.deleteIfExists(spillDir);
+
+		PairList allPairs = new PairList();
+		for(int i=0;i<hashes.length;i++) {
+			for(int j=i+1;j<hashes.length;j++) {
+				if(isClose(hashes[i], hashes[j], maxDistance)) {
+					allPairs.add(((long)i<<32) | j);
+				}
+			}
+		}
+		System.out.printf("Every pair compared found %d pairs\n", allPairs.size);
+
+		//both in order, walked together
+		long[] found = joined.sorted();
+		long[] expected = allPairs.sorted();
+		int missed = 0;
+		int extra = 0;
+		int twice = 0;
+		int i = 0;
+		int j = 0;
+		while(i<found.length || j<expected.length) {
+			if(i>0 && i<found.length && found[i]==found[i-1]) {
+				twice++;
+				i++;
+			}
+			else if(j==expected.length || (i<found.length && found[i]<expected[j])) {
+				extra++;
+				i++;
+			}
+			else if(i==found.length || found[i]>expected[j]) {
+				missed++;
+				j++;
+			}
+			else {
+				i++;
+				j++;
+			}
+		}
+		if(!ok || missed>0 || extra>0 || twice>0) {
+			System.out.printf("Failed : %d pairs missed, %d pairs that are not close and %d found twice\n", missed, extra, twice);
+			System.exit(1);
+		}
+		System.out.println("The pairs are the same");
+	}
+
+	/**
+	 * Growable list of pairs, the two ids in one long. Millions of them are found in the blank group.
+	 */
+	private static class PairList {
+		long[] pairs = new long[1024];
+		int size = 0;
+
+		void add(long pair) {
+			if(size==pairs.length) {
+				pairs = Arrays.copyOf(pairs, size*2);
+			}
+			pairs[size++] = pair;
+		}
+
+		long[] sorted() {
+			long[] sorted = Arrays.copyOf(pairs, size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	/**
+	 * Random images, a third of them with a near copy up to maxDistance+1 bits away, then the blank group.
+	 */
+	private static long[][] images(int numImages, int maxDistance, Random random) {
+		long[] first = SyntheticData.hashes(numImages, random.nextLong());
+		long[][] hashes = new long[numImages+NUM_BLANK][];
+		for(int i=0;i<numImages;i++) {
+			if(i>0 && random.nextInt(3)==0) {
+				long[] original = hashes[random.nextInt(i)];
+				hashes[i] = new long[NUM_HASHES];
+				for(int hash=0;hash<NUM_HASHES;hash++) {
+					hashes[i][hash] = SyntheticData.nearHash(original[hash], random.nextInt(maxDistance+2), random);
+				}
+			}
+			else {
+				hashes[i] = new long[] {first[i], random.nextLong()};
+			}
+		}
+		for(int i=numImages;i<hashes.length;i++) {
+			hashes[i] = new long[] {0, SyntheticData.nearHash(0, random.nextInt(2), random)};
+		}
+		return hashes;
+	}
+
+	private static boolean isClose(long[] hashes1, long[] hashes2, int maxDistance) {
+		for(int hash=0;hash<NUM_HASHES;hash++) {
+			if(Long.bitCount(hashes1[hash]^hashes2[hash])>maxDistance) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,87 @@
+package com.stikasoft.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stikasoft.imageutils.BKTree;
+import com.stikasoft.imageutils.HashIndex;
+import com.stikasoft.imageutils.MultiIndexHash;
+
+/***
+ * MatchBenchmark
+ * 
+ * The matching done by addHashToList. Each image is searched for in the index of the images found before it.
+ * numHashes is the size of the index, index is the -I option and distance the search distance of the -A option (-A=1 searches 4 bits).
+ * 
+ * nearMatch searches for hashes a few bits away from one in the index, like a dup. noMatch searches for random hashes,
+ * like a new image. The index is not changed by the searches so every iteration measures the same index.
+ * 
+ * @author Carl Stika
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class MatchBenchmark {
+
+	private static final int NUM_QUERIES = 4096;
+	
+	@Param({"10000", "100000", "1000000"})
+	public int numHashes;
+	
+	@Param({"tree", "bands"})
+	public String index;
+	
+	@Param({"4"})
+	public int distance;
+	
+	private HashIndex<Integer> hashIndex;
+	private long[] nearQueries = new long[NUM_QUERIES];
+	private long[] randomQueries;
+	private int query = 0;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		hashIndex = index.equals("bands") ? new MultiIndexHash<>(distance) : new BKTree<>();
+		
+		long[] hashes = SyntheticData.hashes(numHashes, 1);
+		for(int i=0;i<hashes.length;i++) {
+			hashIndex.add(hashes[i], i);
+		}
+		
+		Random random = new Random(2);
+		for(int i=0;i<NUM_QUERIES;i++) {
+			nearQueries[i] = SyntheticData.nearHash(hashes[random.nextInt(numHashes)], 1+random.nextInt(distance), random);
+		}
+		randomQueries = SyntheticData.hashes(NUM_QUERIES, 3);
+	}
+	
+	@Benchmark
+	public List<Integer> nearMatch() {
+		query = (query+1)&(NUM_QUERIES-1);
+		return hashIndex.search(nearQueries[query], distance);
+	}
+	
+	@Benchmark
+	public List<Integer> noMatch() {
+		query = (query+1)&(NUM_QUERIES-1);
+		return hashIndex.search(randomQueries[query], distance);
+	}
+}
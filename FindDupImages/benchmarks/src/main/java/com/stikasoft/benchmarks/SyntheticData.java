@@ -0,0 +1,104 @@
+package com.stikasoft.benchmarks;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/***
+ * SyntheticData
+ * 
+ * Images and hashes made from a seed so every run of the benchmarks works on the same data and no image files are needed.
+ * 
+ * @author Carl Stika
+ *
+ */
+public class SyntheticData {
+
+	/**
+	 * image
+	 * 
+	 * Makes a photo like image. A gradient background with random shapes and some noise, so it has detail at every scale.
+	 * The image is the 3 byte BGR type the JPEG reader loads photos as.
+	 * 
+	 * @param width
+	 * @param height
+	 * @param seed
+	 * @return
+	 */
+	public static BufferedImage image(int width, int height, long seed) {
+		Random random = new Random(seed);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		
+		Graphics2D g2d = image.createGraphics();
+		g2d.setPaint(new GradientPaint(0, 0, randomColor(random), width, height, randomColor(random)));
+		g2d.fillRect(0, 0, width, height);
+		
+		for(int i=0;i<40;i++) {
+			g2d.setColor(randomColor(random));
+			int x = random.nextInt(width);
+			int y = random.nextInt(height);
+			int w = 1+random.nextInt(width/3);
+			int h = 1+random.nextInt(height/3);
+			if(random.nextBoolean()) {
+				g2d.fillOval(x, y, w, h);
+			}
+			else {
+				g2d.fillRect(x, y, w, h);
+			}
+		}
+		g2d.dispose();
+		
+		//noise like a camera sensor
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				if(random.nextInt(8)==0) {
+					image.setRGB(x, y, image.getRGB(x, y)^random.nextInt(8));
+				}
+			}
+		}
+		
+		return image;
+	}
+	
+	private static Color randomColor(Random random) {
+		return new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+	}
+	
+	/**
+	 * hashes
+	 * 
+	 * Random 64 bit hashes. Random hashes are spread evenly so this is close to the worst case for the indexes.
+	 * 
+	 * @param count
+	 * @param seed
+	 * @return
+	 */
+	public static long[] hashes(int count, long seed) {
+		Random random = new Random(seed);
+		long[] hashes = new long[count];
+		for(int i=0;i<count;i++) {
+			hashes[i] = random.nextLong();
+		}
+		return hashes;
+	}
+	
+	/**
+	 * nearHash
+	 * 
+	 * The hash with some random bits flipped, like the hash of a slightly changed copy of an image.
+	 * 
+	 * @param hash
+	 * @param bits - number of bits to flip
+	 * @param random
+	 * @return
+	 */
+	public static long nearHash(long hash, int bits, Random random) {
+		long result = hash;
+		while(Long.bitCount(result^hash)<bits) {
+			result ^= 1L<<random.nextInt(64);
+		}
+		return result;
+	}
+}
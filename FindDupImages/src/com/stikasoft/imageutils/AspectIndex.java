@@ -0,0 +1,136 @@
+package com.stikasoft.imageutils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/***
+ * AspectIndex
+ *
+ * Hash index split into buckets by the shape of the image, its width over its height, so images of a different shape are never compared.
+ * The buckets are over the log of the shape so 4:3 is as far from 1:1 as 3:4 is, and each bucket is as wide as the tolerance. An image
+ * within the tolerance of another is always in the same bucket or the one next to it, so a search only looks in three buckets.
+ * Images up to twice the tolerance away are found too, check them with isClose.
+ *
+ * Images whose size is not known go in an index of their own that every search looks in, and a search for an image whose size is
+ * not known looks in every bucket. With a tolerance of 0 every image goes in that index, the same as one HashIndex.
+ *
+ * Not thread safe.
+ *
+ * @author Carl Stika
+ *
+ * @param <T> - value stored with each hash
+ */
+public class AspectIndex<T> {
+
+	private Supplier<HashIndex<T>> newIndex;
+	private double tolerance;
+	//log of 1+tolerance
+	private double bucketWidth;
+	private Map<Integer, HashIndex<T>> buckets = new HashMap<>();
+	private HashIndex<T> unknownShape;
+
+	/**
+	 *
+	 * @param newIndex - makes the index for each bucket.
+	 * @param tolerance - how far apart the shapes of two images can be, 0.05 is 5%. 0 to not split the images by shape.
+	 */
+	public AspectIndex(Supplier<HashIndex<T>> newIndex, double tolerance) {
+		this.newIndex = newIndex;
+		this.tolerance = tolerance;
+		bucketWidth = Math.log1p(tolerance);
+		unknownShape = newIndex.get();
+	}
+
+	/**
+	 * add
+	 *
+	 * @param hash
+	 * @param width - of the image, 0 if it is not known.
+	 * @param height - of the image, 0 if it is not known.
+	 * @param value
+	 */
+	public void add(long hash, int width, int height, T value) {
+		if(!hasShape(width, height)) {
+			unknownShape.add(hash, value);
+			return;
+		}
+
+		buckets.computeIfAbsent(bucket(width, height), b->newIndex.get()).add(hash, value);
+	}
+
+	/**
+	 * search
+	 *
+	 * Finds the values whose hash is within maxDistance of the hash in the buckets an image of the size could match.
+	 *
+	 * @param hash
+	 * @param width - of the image, 0 if it is not known.
+	 * @param height - of the image, 0 if it is not known.
+	 * @param maxDistance - largest distance to include.
+	 * @return - values found. Empty if there are none.
+	 */
+	public List<T> search(long hash, int width, int height, int maxDistance) {
+		if(buckets.isEmpty()) return unknownShape.search(hash, maxDistance);
+
+		List<T> found = new ArrayList<>(unknownShape.search(hash, maxDistance));
+		if(hasShape(width, height)) {
+			int bucket = bucket(width, height);
+			for(int b=bucket-1;b<=bucket+1;b++) {
+				HashIndex<T> index = buckets.get(b);
+				if(index!=null) found.addAll(index.search(hash, maxDistance));
+			}
+		}
+		else {
+			for(HashIndex<T> index : buckets.values()) {
+				found.addAll(index.search(hash, maxDistance));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * isClose
+	 *
+	 * @return - true if the shapes of the two images are within the tolerance, or the size of either is not known.
+	 */
+	public boolean isClose(int width1, int height1, int width2, int height2) {
+		if(!hasShape(width1, height1) || !hasShape(width2, height2)) return true;
+
+		return Math.abs(Math.log((double)width1/height1) - Math.log((double)width2/height2))<=bucketWidth;
+	}
+
+	/**
+	 *
+	 * @return number of hashes in the index.
+	 */
+	public int size() {
+		int size = unknownShape.size();
+		for(HashIndex<T> index : buckets.values()) {
+			size += index.size();
+		}
+		return size;
+	}
+
+	/**
+	 *
+	 * @return number of hashes compared by the searches so far.
+	 */
+	public long comparisons() {
+		long comparisons = unknownShape.comparisons();
+		for(HashIndex<T> index : buckets.values()) {
+			comparisons += index.comparisons();
+		}
+		return comparisons;
+	}
+
+	private boolean hasShape(int width, int height) {
+		return tolerance>0 && width>0 && height>0;
+	}
+
+	private int bucket(int width, int height) {
+		return (int)Math.floor(Math.log((double)width/height)/bucketWidth);
+	}
+}
@@ -0,0 +1,139 @@
+package com.stikasoft.imageutils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * BKTree
+ *
+ * Burkhard-Keller tree over the hamming distance of 64 bit image hashes.
+ * Every child of a node is stored with its distance to the node. Because hamming distance is a metric,
+ * a search for everything within maxDistance of a hash only has to visit the children whose distance
+ * is within maxDistance of the distance between the hash and the node. Most of the tree is never looked at.
+ *
+ * The tree is not thread safe. Searches can run at the same time as each other, but not with an add.
+ *
+ * @author Carl Stika
+ *
+ * @param <T> - value stored with each hash
+ */
+public class BKTree<T> implements HashIndex<T> {
+
+	/***
+	 * Node
+	 *
+	 * Children are kept as a linked list to keep the nodes small. Most nodes are leaves.
+	 */
+	private class Node {
+		long hash;
+		T value;
+		int distanceToParent;
+		Node firstChild;
+		Node nextSibling;
+
+		Node(long hash, T value, int distanceToParent) {
+			this.hash = hash;
+			this.value = value;
+			this.distanceToParent = distanceToParent;
+		}
+	}
+
+	private Node root;
+	private int size = 0;
+	//added to by searches running at the same time
+	private LongAdder comparisons = new LongAdder();
+
+	/**
+	 * add
+	 *
+	 * Adds the hash to the tree. The same hash can be added more than once.
+	 *
+	 * @param hash
+	 * @param value
+	 */
+	@Override
+	public void add(long hash, T value) {
+		size++;
+		if(root==null) {
+			root = new Node(hash, value, 0);
+			return;
+		}
+
+		Node node = root;
+		while(true) {
+			int distance = Long.bitCount(node.hash^hash);
+
+			Node child = node.firstChild;
+			while(child!=null && child.distanceToParent!=distance) {
+				child = child.nextSibling;
+			}
+
+			if(child==null) {
+				Node newNode = new Node(hash, value, distance);
+				newNode.nextSibling = node.firstChild;
+				node.firstChild = newNode;
+				return;
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * search
+	 *
+	 * Finds all the values whose hash is within maxDistance of the hash.
+	 *
+	 * @param hash
+	 * @param maxDistance - largest distance to include.
+	 * @return - values found. Empty if there are none.
+	 */
+	@Override
+	public List<T> search(long hash, int maxDistance) {
+		List<T> result = new ArrayList<>();
+
+		if(root==null) return result;
+
+		Deque<Node> nodesToCheck = new ArrayDeque<>();
+		nodesToCheck.push(root);
+		long searched = 0;
+
+		while(!nodesToCheck.isEmpty()) {
+			Node node = nodesToCheck.pop();
+			int distance = Long.bitCount(node.hash^hash);
+			searched++;
+
+			if(distance<=maxDistance) {
+				result.add(node.value);
+			}
+
+			//Only children in the range [distance-maxDistance, distance+maxDistance] can be close enough.
+			int minDistance = distance-maxDistance;
+			int maxChildDistance = distance+maxDistance;
+			for(Node child=node.firstChild; child!=null; child=child.nextSibling) {
+				if(child.distanceToParent>=minDistance && child.distanceToParent<=maxChildDistance) {
+					nodesToCheck.push(child);
+				}
+			}
+		}
+		comparisons.add(searched);
+
+		return result;
+	}
+
+	/**
+	 *
+	 * @return number of hashes in the tree.
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long comparisons() {
+		return comparisons.sum();
+	}
+}
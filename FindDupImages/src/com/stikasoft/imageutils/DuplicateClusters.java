@@ -0,0 +1,315 @@
+package com.stikasoft.imageutils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ * DuplicateClusters
+ *
+ * Groups images into disjoint groups of duplicates. Every pair of close images is joined with union so chains of
+ * images where A is close to B and B is close to C end up in one group, and an image is never in more than one group.
+ * Each group has a keeper, the image picked by the keep rule, the rest are the dups.
+ *
+ * The images are kept in arrays by id, there is no object for each image. The paths are kept as UTF-8 bytes one after
+ * another in one array and only made into Strings when they are asked for, for the matches and groups that are written out.
+ *
+ * Not thread safe.
+ *
+ * @author Carl Stika
+ *
+ */
+public class DuplicateClusters {
+
+	//Rules to pick the keeper of a group. Ties go to the image found first.
+	public static final int KEEP_FIRST = 0;
+	public static final int KEEP_RESOLUTION = 1;
+	public static final int KEEP_OLDEST = 2;
+	public static final int KEEP_SHORTEST_PATH = 3;
+	public static final int KEEP_LARGEST_FILE = 4;
+
+	//Largest array the JVM can make
+	private static final int MAX_PATH_BYTES = Integer.MAX_VALUE-8;
+
+	private UnionFind sets = new UnionFind();
+	private int numHashes;
+	//UTF-8 bytes of all the paths, and the end of the path of each image in them. A path starts where the one before it ends.
+	private byte[] pathBytes = new byte[64*1024];
+	private int pathBytesSize = 0;
+	private int[] pathEnds = new int[1024];
+	//numHashes for each image
+	private long[] hashes;
+	private long[] sizes = new long[1024];
+	private long[] modifieds = new long[1024];
+	//from the image headers, 0 if not known
+	private int[] widths = new int[1024];
+	private int[] heights = new int[1024];
+
+	/**
+	 *
+	 * @param numHashes - number of hashes of each image. See ImageHash.hashImageAll and hashImageOrientations.
+	 */
+	public DuplicateClusters(int numHashes) {
+		this.numHashes = numHashes;
+		hashes = new long[1024*numHashes];
+	}
+
+	/**
+	 * add
+	 *
+	 * Adds an image in a group of its own.
+	 *
+	 * @param path - full path of the file
+	 * @param imageHashes - numHashes hashes
+	 * @param size - size of the file
+	 * @param modified - modified time of the file
+	 * @return - id of the image.
+	 */
+	public int add(String path, long[] imageHashes, long size, long modified) {
+		return add(path, imageHashes, size, modified, 0, 0);
+	}
+
+	/**
+	 * add
+	 *
+	 * Adds an image in a group of its own, with its size read from its header.
+	 *
+	 * @param path - full path of the file
+	 * @param imageHashes - numHashes hashes
+	 * @param size - size of the file
+	 * @param modified - modified time of the file
+	 * @param width - of the image, 0 if it is not known.
+	 * @param height - of the image, 0 if it is not known.
+	 * @return - id of the image.
+	 */
+	public int add(String path, long[] imageHashes, long size, long modified, int width, int height) {
+		int id = sets.add();
+		if(id==pathEnds.length) {
+			pathEnds = Arrays.copyOf(pathEnds, id*2);
+			hashes = Arrays.copyOf(hashes, id*2*numHashes);
+			sizes = Arrays.copyOf(sizes, id*2);
+			modifieds = Arrays.copyOf(modifieds, id*2);
+			widths = Arrays.copyOf(widths, id*2);
+			heights = Arrays.copyOf(heights, id*2);
+		}
+
+		byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+		if(pathBytesSize+bytes.length>pathBytes.length) {
+			if(pathBytesSize>MAX_PATH_BYTES-bytes.length) throw new IllegalStateException("The paths of the images are over 2GB");
+			pathBytes = Arrays.copyOf(pathBytes, (int)Math.min(MAX_PATH_BYTES, Math.max((long)pathBytes.length*2, pathBytesSize+bytes.length)));
+		}
+		System.arraycopy(bytes, 0, pathBytes, pathBytesSize, bytes.length);
+		pathBytesSize += bytes.length;
+		pathEnds[id] = pathBytesSize;
+		System.arraycopy(imageHashes, 0, hashes, id*numHashes, numHashes);
+		sizes[id] = size;
+		modifieds[id] = modified;
+		widths[id] = width;
+		heights[id] = height;
+		return id;
+	}
+
+	/**
+	 * union
+	 *
+	 * Puts the two images in the same group.
+	 *
+	 * @param id1
+	 * @param id2
+	 */
+	public void union(int id1, int id2) {
+		sets.union(id1, id2);
+	}
+
+	/**
+	 *
+	 * @return - number of images.
+	 */
+	public int size() {
+		return sets.size();
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return - the path of the image, made from its bytes each time it is asked for.
+	 */
+	public String getPath(int id) {
+		int start = pathStart(id);
+		return new String(pathBytes, start, pathEnds[id]-start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 *
+	 * @param id1
+	 * @param id2
+	 * @return - true if the two images have the same path. The paths are not made into Strings.
+	 */
+	public boolean samePath(int id1, int id2) {
+		return Arrays.equals(pathBytes, pathStart(id1), pathEnds[id1], pathBytes, pathStart(id2), pathEnds[id2]);
+	}
+
+	private int pathStart(int id) {
+		return (id==0) ? 0 : pathEnds[id-1];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return - the first hash of the image, the one close images are found with.
+	 */
+	public long getHash(int id) {
+		return hashes[id*numHashes];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @param hash - which hash, 0 to numHashes-1.
+	 * @return
+	 */
+	public long getHash(int id, int hash) {
+		return hashes[id*numHashes+hash];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return - all the hashes of the image.
+	 */
+	public long[] getHashes(int id) {
+		return Arrays.copyOfRange(hashes, id*numHashes, (id+1)*numHashes);
+	}
+
+	public long getSize(int id) {
+		return sizes[id];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return - width of the image from its header, 0 if it is not known.
+	 */
+	public int getWidth(int id) {
+		return widths[id];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return - height of the image from its header, 0 if it is not known.
+	 */
+	public int getHeight(int id) {
+		return heights[id];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return - id of the first image added to the group the image is in.
+	 */
+	public int first(int id) {
+		return sets.lowest(id);
+	}
+
+	/**
+	 * groups
+	 *
+	 * Makes the groups with more than one image.
+	 *
+	 * @return - the ids of the images in each group, in the order they were added. The groups are in the order of their first image.
+	 */
+	public List<int[]> groups() {
+		int numImages = sets.size();
+		List<int[]> groups = new ArrayList<>();
+
+		//index in groups of the group of each root, or -1
+		int[] groupOfRoot = new int[numImages];
+		Arrays.fill(groupOfRoot, -1);
+		int[] filled = new int[0];
+
+		for(int id=0;id<numImages;id++) {
+			int root = sets.find(id);
+			int setSize = sets.setSize(root);
+			if(setSize<2) continue;
+
+			int group = groupOfRoot[root];
+			if(group<0) {
+				group = groups.size();
+				groupOfRoot[root] = group;
+				groups.add(new int[setSize]);
+				if(group==filled.length) {
+					filled = Arrays.copyOf(filled, Math.max(16, group*2));
+				}
+			}
+			groups.get(group)[filled[group]++] = id;
+		}
+
+		return groups;
+	}
+
+	/**
+	 * keeper
+	 *
+	 * Picks the image of the group to keep.
+	 * KEEP_RESOLUTION uses the size of each image from its header, the images are not decoded. The sizes are read when the
+	 * images are added, the header is only read now for an image whose size was not known then, a format ImageHeader does not read.
+	 *
+	 * @param group - ids of the images in the group, in the order they were added.
+	 * @param keepRule - one of the KEEP_ rules.
+	 * @return - id of the image to keep.
+	 */
+	public int keeper(int[] group, int keepRule) {
+		int keeper = group[0];
+
+		switch(keepRule) {
+			case KEEP_RESOLUTION:
+				{
+					long mostPixels = pixels(keeper);
+					for(int i=1;i<group.length;i++) {
+						long pixels = pixels(group[i]);
+						if(pixels>mostPixels) {
+							mostPixels = pixels;
+							keeper = group[i];
+						}
+					}
+				}
+				break;
+			case KEEP_OLDEST:
+				for(int id : group) {
+					if(modifieds[id]<modifieds[keeper]) keeper = id;
+				}
+				break;
+			case KEEP_SHORTEST_PATH:
+				{
+					int shortest = getPath(keeper).length();
+					for(int i=1;i<group.length;i++) {
+						int length = getPath(group[i]).length();
+						if(length<shortest) {
+							shortest = length;
+							keeper = group[i];
+						}
+					}
+				}
+				break;
+			case KEEP_LARGEST_FILE:
+				for(int id : group) {
+					if(sizes[id]>sizes[keeper]) keeper = id;
+				}
+				break;
+			default:
+				break;
+		}
+
+		return keeper;
+	}
+
+	/**
+	 * @return - width times height of the image, or -1 if the image could not be read.
+	 */
+	private long pixels(int id) {
+		if(widths[id]>0 && heights[id]>0) return (long)widths[id]*heights[id];
+		return ImageUtils.readImagePixels(getPath(id));
+	}
+}
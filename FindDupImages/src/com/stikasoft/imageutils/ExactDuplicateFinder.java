@@ -0,0 +1,321 @@
+package com.stikasoft.imageutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * ExactDuplicateFinder
+ *
+ * Finds files that are byte for byte copies of a file seen before, without decoding them.
+ * Files are grouped by size. A file is only read if another file has the same size. Then the first and last 64K of
+ * the files are compared by digest, and only if those match is the whole file digested. Most files never get read.
+ *
+ * A copy gets the hashes of the file it is a copy of. If that file is still being hashed the copy waits until setHash is called.
+ * There is only one entry for a path. A file changed in place in watch mode can keep its size, its new entry takes the place
+ * of the old one and the copies waiting for the old one wait for the new one.
+ *
+ * All methods can be called from many threads. Files with the same size are checked one at a time.
+ *
+ * @author Carl Stika
+ *
+ */
+public class ExactDuplicateFinder {
+
+	private static final int PARTIAL_SIZE = 64*1024;
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/***
+	 * CopyListener
+	 *
+	 * Told about a copy when the hash of the original is known.
+	 */
+	public interface CopyListener {
+		void copyFound(Path copy, Path original, long[] hashes);
+	}
+
+	/***
+	 * FileEntry
+	 *
+	 * A file that is not a copy. The digests are only made when another file with the same size is checked.
+	 */
+	private static class FileEntry {
+		Path path;
+		byte[] partialDigest;
+		byte[] fullDigest;
+		boolean unreadable = false;
+
+		//hashes of the image, once they are known
+		boolean hashKnown = false;
+		boolean hashFailed = false;
+		long[] hashes;
+
+		//copies waiting for the hash
+		List<Path> waitingCopies;
+		List<CopyListener> waitingListeners;
+
+		FileEntry(Path path) {
+			this.path = path;
+		}
+	}
+
+	private Map<Long, List<FileEntry>> filesBySize = new ConcurrentHashMap<>();
+	private ThreadLocal<ByteBuffer> readBuffers = ThreadLocal.withInitial(()->ByteBuffer.allocate(PARTIAL_SIZE));
+	private LongAdder bytesRead = new LongAdder();
+
+	/**
+	 * checkForCopy
+	 *
+	 * Checks if the file is a copy of a file already seen. If it is not a copy it is remembered and the caller
+	 * must hash it and call setHash or hashFailed.
+	 *
+	 * @param file
+	 * @param size - size of the file
+	 * @param listener - called with the hashes of the original when the file is a copy. It can be called later from another thread.
+	 * @return - true if the file is a copy.
+	 */
+	public boolean checkForCopy(Path file, long size, CopyListener listener) {
+		List<FileEntry> sameSize = filesBySize.computeIfAbsent(size, key->new ArrayList<>(1));
+
+		synchronized(sameSize) {
+			FileEntry entry = new FileEntry(file);
+			//the file changed in place, it is not a copy of itself
+			FileEntry oldEntry = findEntry(sameSize, file);
+			if(oldEntry!=null) {
+				sameSize.remove(oldEntry);
+			}
+
+			if(!sameSize.isEmpty()) {
+				FileEntry original = findOriginal(entry, size, sameSize);
+
+				if(original!=null) {
+					//the copies waiting for the old contents still get the hash from the hashing of them
+					if(oldEntry!=null && oldEntry.waitingCopies!=null) {
+						sameSize.add(oldEntry);
+					}
+
+					if(original.hashKnown) {
+						listener.copyFound(file, original.path, original.hashes);
+					}
+					else if(!original.hashFailed) {
+						if(original.waitingCopies==null) {
+							original.waitingCopies = new ArrayList<>(1);
+							original.waitingListeners = new ArrayList<>(1);
+						}
+						original.waitingCopies.add(file);
+						original.waitingListeners.add(listener);
+					}
+					return true;
+				}
+			}
+
+			takeWaitingCopies(entry, oldEntry);
+			sameSize.add(entry);
+		}
+		return false;
+	}
+
+	/**
+	 * add
+	 *
+	 * Remembers a file whose hash is already known, so later copies of it are found. The file is not read.
+	 *
+	 * @param file
+	 * @param size
+	 * @param hashes
+	 */
+	public void add(Path file, long size, long[] hashes) {
+		List<FileEntry> sameSize = filesBySize.computeIfAbsent(size, key->new ArrayList<>(1));
+
+		synchronized(sameSize) {
+			FileEntry entry = new FileEntry(file);
+			FileEntry oldEntry = findEntry(sameSize, file);
+			if(oldEntry!=null) {
+				sameSize.remove(oldEntry);
+				takeWaitingCopies(entry, oldEntry);
+			}
+			sameSize.add(entry);
+			setHash(entry, hashes);
+		}
+	}
+
+	/**
+	 * setHash
+	 *
+	 * Sets the hash of a file that checkForCopy said was not a copy. Copies waiting for it are passed to their listeners.
+	 *
+	 * @param file
+	 * @param size
+	 * @param hashes
+	 */
+	public void setHash(Path file, long size, long[] hashes) {
+		List<FileEntry> sameSize = filesBySize.get(size);
+		if(sameSize==null) return;
+
+		synchronized(sameSize) {
+			FileEntry entry = findEntry(sameSize, file);
+			if(entry!=null) {
+				setHash(entry, hashes);
+			}
+		}
+	}
+
+	private void setHash(FileEntry entry, long[] hashes) {
+		entry.hashKnown = true;
+		entry.hashes = hashes;
+
+		if(entry.waitingCopies!=null) {
+			for(int i=0;i<entry.waitingCopies.size();i++) {
+				entry.waitingListeners.get(i).copyFound(entry.waitingCopies.get(i), entry.path, hashes);
+			}
+			entry.waitingCopies = null;
+			entry.waitingListeners = null;
+		}
+	}
+
+	/**
+	 * The new entry of a file takes the copies waiting for its old entry.
+	 */
+	private void takeWaitingCopies(FileEntry entry, FileEntry oldEntry) {
+		if(oldEntry!=null) {
+			entry.waitingCopies = oldEntry.waitingCopies;
+			entry.waitingListeners = oldEntry.waitingListeners;
+		}
+	}
+
+	/**
+	 * hashFailed
+	 *
+	 * The file that checkForCopy said was not a copy could not be hashed. Its copies can not be hashed either so they are dropped.
+	 *
+	 * @param file
+	 * @param size
+	 */
+	public void hashFailed(Path file, long size) {
+		List<FileEntry> sameSize = filesBySize.get(size);
+		if(sameSize==null) return;
+
+		synchronized(sameSize) {
+			FileEntry entry = findEntry(sameSize, file);
+			if(entry!=null) {
+				entry.hashFailed = true;
+				entry.waitingCopies = null;
+				entry.waitingListeners = null;
+			}
+		}
+	}
+
+	private FileEntry findEntry(List<FileEntry> sameSize, Path file) {
+		for(FileEntry entry : sameSize) {
+			if(entry.path.equals(file)) return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * findOriginal
+	 *
+	 * Compares the file with the files of the same size. Digests are made as they are needed and kept.
+	 *
+	 * @param entry - the file being checked
+	 * @param size
+	 * @param sameSize
+	 * @return - the file it is a copy of or null.
+	 */
+	private FileEntry findOriginal(FileEntry entry, long size, List<FileEntry> sameSize) {
+		if(!partialDigest(entry, size)) return null;
+
+		for(FileEntry other : sameSize) {
+			if(partialDigest(other, size) && Arrays.equals(entry.partialDigest, other.partialDigest)
+					&& fullDigest(entry, size) && fullDigest(other, size) && Arrays.equals(entry.fullDigest, other.fullDigest)) {
+				return other;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Digest of the first and last 64K of the file. Files of 128K or less are read in full so the partial digest is the full digest.
+	 *
+	 * @return - false if the file could not be read.
+	 */
+	private boolean partialDigest(FileEntry entry, long size) {
+		if(entry.partialDigest!=null) return true;
+		if(entry.unreadable) return false;
+
+		try(FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+			MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+
+			if(size<=2*PARTIAL_SIZE) {
+				digestRange(channel, digest, 0, size);
+				entry.partialDigest = digest.digest();
+				entry.fullDigest = entry.partialDigest;
+			}
+			else {
+				digestRange(channel, digest, 0, PARTIAL_SIZE);
+				digestRange(channel, digest, size-PARTIAL_SIZE, PARTIAL_SIZE);
+				entry.partialDigest = digest.digest();
+			}
+		} catch (IOException | NoSuchAlgorithmException e) {
+			entry.unreadable = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Digest of the whole file.
+	 *
+	 * @return - false if the file could not be read.
+	 */
+	private boolean fullDigest(FileEntry entry, long size) {
+		if(entry.fullDigest!=null) return true;
+		if(entry.unreadable) return false;
+
+		try(FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+			MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			digestRange(channel, digest, 0, size);
+			entry.fullDigest = digest.digest();
+		} catch (IOException | NoSuchAlgorithmException e) {
+			entry.unreadable = true;
+			return false;
+		}
+		return true;
+	}
+
+	private void digestRange(FileChannel channel, MessageDigest digest, long position, long length) throws IOException {
+		ByteBuffer buffer = readBuffers.get();
+		long end = position+length;
+
+		while(position<end) {
+			buffer.clear();
+			buffer.limit((int)Math.min(buffer.capacity(), end-position));
+
+			int read = channel.read(buffer, position);
+			if(read<0) throw new IOException("file changed size");
+
+			buffer.flip();
+			digest.update(buffer);
+			position += read;
+			bytesRead.add(read);
+		}
+	}
+
+	/**
+	 * 
+	 * @return - number of bytes read to digest files so far.
+	 */
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+}
@@ -0,0 +1,649 @@
+package com.stikasoft.imageutils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+/***
+ * ExternalHashJoin
+ *
+ * Finds the close pairs of images in a set of hashes that is too big to keep in memory.
+ * Nothing is kept in memory for each image. The path, size, modified time and image size of each image are written to files in the
+ * spill directory and only read back for the images that are in a close pair.
+ *
+ * The hashes are kept in memory until the memory budget is used up and then written out as a run. The first hash is split
+ * into bands the same way as MultiIndexHash does for small distances, maxDistance+1 bands, so two hashes within maxDistance
+ * have at least one band that is the same. Each run is sorted and written once for each band. The join is done a band at a
+ * time by merging the runs of the band, so the images with the same band value come out together and only those are compared.
+ * A pair is only reported by the first band it has the same value in. The pairs are written to a file too, and read back
+ * with forEachPair, so only one bit for each image is kept in memory, to tell which images are in a pair.
+ *
+ * The time taken goes up with the number of images that share a band value, so it is meant for the small distances,
+ * -A=0 or 1. The images with the same band value are held in memory while they are compared. Blank or flat images all
+ * have about the same hash and can make one huge group, so a group of more than MAX_BUCKET_SIZE images, or fewer if the
+ * memory budget is smaller, is written to a file and joined a block at a time like a nested loop join. Each block is held
+ * in memory and the images after it are read from the file and compared with it. Every pair is still compared.
+ *
+ * Errors are printed and stop the join. Not thread safe, add is called from the match stage and join after it.
+ *
+ * @author Carl Stika
+ *
+ */
+public class ExternalHashJoin {
+
+	/***
+	 * PairListener
+	 *
+	 * Called for each close pair found by join, see forEachPair.
+	 */
+	public interface PairListener {
+		/**
+		 * @param fileId1 - the image added first
+		 * @param fileId2 - the image added later
+		 */
+		void pairFound(int fileId1, int fileId2);
+	}
+
+	/***
+	 * RunReader
+	 *
+	 * Reads the records of one run of a band in order.
+	 */
+	private class RunReader {
+		DataInputStream in;
+		int fileId;
+		long[] hashes = new long[numHashes];
+		int key;
+
+		RunReader(Path file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE));
+		}
+
+		/**
+		 * @return - false at the end of the run.
+		 */
+		boolean next(int band) throws IOException {
+			try {
+				fileId = in.readInt();
+			} catch (EOFException e) {
+				in.close();
+				return false;
+			}
+			for(int hash=0;hash<numHashes;hash++) {
+				hashes[hash] = in.readLong();
+			}
+			key = bandValue(hashes[0], band);
+			return true;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 64*1024;
+	//size, modified, path offset, width and height of each image
+	private static final int INFO_SIZE = 32;
+	//Most images with the same band value held in memory, bigger groups are joined a block at a time
+	private static final int MAX_BUCKET_SIZE = 8192;
+
+	private Path spillDir;
+	private int maxDistance;
+	private int numHashes;
+	private int numBands;
+	private int[] bandShift;
+	private int[] bandBits;
+
+	//Hashes waiting to be written as a run
+	private int[] runIds;
+	private long[] runHashes;
+	private long[] sortKeys;
+	private int runSize = 0;
+	private int numRuns = 0;
+
+	//Hashes and info of every image, by file id, and the paths
+	private DataOutputStream hashesOut;
+	private DataOutputStream infoOut;
+	private DataOutputStream pathsOut;
+	private long pathsSize = 0;
+	private FileChannel hashesChannel;
+	private FileChannel infoChannel;
+	private FileChannel pathsChannel;
+	private int size = 0;
+
+	//Images with the same band value while they are compared
+	private int[] bucketIds = new int[64];
+	private long[] bucketHashes;
+	private int maxBucketSize;
+	private long blockJoinedImages = 0;
+
+	//Close pairs, two file ids each, and the images that are in one
+	private DataOutputStream pairsOut;
+	private BitSet pairedIds = new BitSet();
+
+	private boolean failed = false;
+	private long comparisons = 0;
+	private long checkRejects = 0;
+
+	/**
+	 * create
+	 *
+	 * Makes a new directory in the spill directory for the files of the join.
+	 *
+	 * @param spillDir - directory to write the files to.
+	 * @param maxDistance - largest distance between the hashes of a close pair.
+	 * @param numHashes - number of hashes of each image. All of them must be within maxDistance, see ImageHash.hashImageAll.
+	 * @param memoryBudget - bytes of hashes kept in memory before a run is written.
+	 * @return - null if the files could not be made.
+	 */
+	public static ExternalHashJoin create(Path spillDir, int maxDistance, int numHashes, long memoryBudget) {
+		try {
+			Files.createDirectories(spillDir);
+			return new ExternalHashJoin(Files.createTempDirectory(spillDir, "finddupimages"), maxDistance, numHashes, memoryBudget);
+		} catch (IOException e) {
+			System.err.printf("Error : Could not make spill files in %s. %s\n", spillDir, e.getMessage());
+			return null;
+		}
+	}
+
+	private ExternalHashJoin(Path spillDir, int maxDistance, int numHashes, long memoryBudget) throws IOException {
+		this.spillDir = spillDir;
+		this.maxDistance = maxDistance;
+		this.numHashes = numHashes;
+
+		numBands = Math.max(2, maxDistance+1);
+		bandShift = new int[numBands];
+		bandBits = new int[numBands];
+		int shift = 64;
+		for(int band=0;band<numBands;band++) {
+			bandBits[band] = 64/numBands + ((band<64%numBands) ? 1 : 0);
+			shift -= bandBits[band];
+			bandShift[band] = shift;
+		}
+
+		//the id, the hashes and the sort key of each image
+		int capacity = (int)Math.min(Integer.MAX_VALUE/numHashes, Math.max(1024, memoryBudget/(4+numHashes*8+8)));
+		runIds = new int[capacity];
+		runHashes = new long[capacity*numHashes];
+		sortKeys = new long[capacity];
+		bucketHashes = new long[bucketIds.length*numHashes];
+		maxBucketSize = (int)Math.min(MAX_BUCKET_SIZE, Math.max(bucketIds.length, memoryBudget/(4+numHashes*8)));
+
+		hashesOut = openOutput(spillDir.resolve("hashes"));
+		infoOut = openOutput(spillDir.resolve("info"));
+		pathsOut = openOutput(spillDir.resolve("paths"));
+	}
+
+	private static DataOutputStream openOutput(Path file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+	}
+
+	/**
+	 * add
+	 *
+	 * Adds an image. Its hashes are written out with the next run.
+	 *
+	 * @param path - full path of the file
+	 * @param hashes - numHashes hashes
+	 * @param size - size of the file
+	 * @param modified - modified time of the file
+	 */
+	public void add(String path, long[] hashes, long size, long modified) {
+		add(path, hashes, size, modified, 0, 0);
+	}
+
+	/**
+	 * add
+	 *
+	 * Adds an image, with its size read from its header. Its hashes are written out with the next run.
+	 *
+	 * @param path - full path of the file
+	 * @param hashes - numHashes hashes
+	 * @param size - size of the file
+	 * @param modified - modified time of the file
+	 * @param width - of the image, 0 if it is not known.
+	 * @param height - of the image, 0 if it is not known.
+	 */
+	public void add(String path, long[] hashes, long size, long modified, int width, int height) {
+		if(failed) return;
+
+		int fileId = this.size++;
+		try {
+			byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+			pathsOut.writeInt(pathBytes.length);
+			pathsOut.write(pathBytes);
+			for(int hash=0;hash<numHashes;hash++) {
+				hashesOut.writeLong(hashes[hash]);
+			}
+			infoOut.writeLong(size);
+			infoOut.writeLong(modified);
+			infoOut.writeLong(pathsSize);
+			infoOut.writeInt(width);
+			infoOut.writeInt(height);
+			pathsSize += 4 + pathBytes.length;
+
+			runIds[runSize] = fileId;
+			System.arraycopy(hashes, 0, runHashes, runSize*numHashes, numHashes);
+			runSize++;
+			if(runSize==runIds.length) {
+				writeRun();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 *
+	 * @return - number of images added.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * writeRun
+	 *
+	 * Writes the hashes in memory sorted by each band.
+	 */
+	private void writeRun() throws IOException {
+		for(int band=0;band<numBands;band++) {
+			for(int i=0;i<runSize;i++) {
+				sortKeys[i] = ((long)bandValue(runHashes[i*numHashes], band)<<32) | i;
+			}
+			Arrays.sort(sortKeys, 0, runSize);
+
+			try(DataOutputStream out = openOutput(runFile(band, numRuns))) {
+				for(int i=0;i<runSize;i++) {
+					int record = (int)sortKeys[i];
+					writeRecord(out, runIds[record], runHashes, record*numHashes);
+				}
+			}
+		}
+		numRuns++;
+		runSize = 0;
+	}
+
+	private Path runFile(int band, int run) {
+		return spillDir.resolve("band" + band + "-run" + run);
+	}
+
+	/**
+	 * join
+	 *
+	 * Finds every pair of images whose hashes are all within maxDistance and writes them to the pairs file.
+	 * Nothing can be added after the join.
+	 *
+	 * @return - false if the join could not be done.
+	 */
+	public boolean join() {
+		if(failed) return false;
+
+		try {
+			if(runSize>0) {
+				writeRun();
+			}
+			runIds = null;
+			runHashes = null;
+			sortKeys = null;
+
+			hashesOut.close();
+			infoOut.close();
+			pathsOut.close();
+			hashesChannel = FileChannel.open(spillDir.resolve("hashes"), StandardOpenOption.READ);
+			infoChannel = FileChannel.open(spillDir.resolve("info"), StandardOpenOption.READ);
+			pathsChannel = FileChannel.open(spillDir.resolve("paths"), StandardOpenOption.READ);
+
+			pairsOut = openOutput(spillDir.resolve("pairs"));
+			for(int band=0;band<numBands;band++) {
+				joinBand(band);
+			}
+			pairsOut.close();
+		} catch (IOException e) {
+			fail(e);
+		}
+		return !failed;
+	}
+
+	/**
+	 * pairedFileIds
+	 *
+	 * @return - the ids of the images in a close pair, in order. Only after join.
+	 */
+	public int[] pairedFileIds() {
+		return pairedIds.stream().toArray();
+	}
+
+	/**
+	 * forEachPair
+	 *
+	 * Reads the close pairs found by join back from the pairs file.
+	 *
+	 * @param found - called with each close pair.
+	 * @return - false if the pairs could not be read.
+	 */
+	public boolean forEachPair(PairListener found) {
+		if(failed) return false;
+
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillDir.resolve("pairs")), BUFFER_SIZE))) {
+			while(true) {
+				int fileId1;
+				try {
+					fileId1 = in.readInt();
+				} catch (EOFException e) {
+					return true;
+				}
+				found.pairFound(fileId1, in.readInt());
+			}
+		} catch (IOException e) {
+			System.err.printf("Error : Could not read spill files in %s. %s\n", spillDir, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * joinBand
+	 *
+	 * Merges the runs of the band and compares the images in each group with the same band value.
+	 */
+	private void joinBand(int band) throws IOException {
+		PriorityQueue<RunReader> readers = new PriorityQueue<>((reader1, reader2)->Integer.compare(reader1.key, reader2.key));
+		for(int run=0;run<numRuns;run++) {
+			RunReader reader = new RunReader(runFile(band, run));
+			if(reader.next(band)) {
+				readers.add(reader);
+			}
+		}
+
+		while(!readers.isEmpty()) {
+			int key = readers.peek().key;
+			int bucketSize = 0;
+			//the images of a group too big for memory
+			DataOutputStream bucketOut = null;
+			int bucketFileSize = 0;
+			while(!readers.isEmpty() && readers.peek().key==key) {
+				RunReader reader = readers.poll();
+				if(bucketOut!=null) {
+					writeRecord(bucketOut, reader.fileId, reader.hashes, 0);
+					bucketFileSize++;
+				}
+				else if(bucketSize==maxBucketSize) {
+					bucketOut = openOutput(bucketFile());
+					for(int i=0;i<bucketSize;i++) {
+						writeRecord(bucketOut, bucketIds[i], bucketHashes, i*numHashes);
+					}
+					writeRecord(bucketOut, reader.fileId, reader.hashes, 0);
+					bucketFileSize = bucketSize+1;
+				}
+				else {
+					if(bucketSize==bucketIds.length) {
+						int newSize = Math.min(bucketSize*2, maxBucketSize);
+						bucketIds = Arrays.copyOf(bucketIds, newSize);
+						bucketHashes = Arrays.copyOf(bucketHashes, newSize*numHashes);
+					}
+					bucketIds[bucketSize] = reader.fileId;
+					System.arraycopy(reader.hashes, 0, bucketHashes, bucketSize*numHashes, numHashes);
+					bucketSize++;
+				}
+
+				if(reader.next(band)) {
+					readers.add(reader);
+				}
+			}
+
+			if(bucketOut!=null) {
+				bucketOut.close();
+				blockJoin(bucketFileSize, band);
+				blockJoinedImages += bucketFileSize;
+			}
+			else {
+				comparePairs(bucketSize, band);
+			}
+		}
+
+		for(int run=0;run<numRuns;run++) {
+			Files.deleteIfExists(runFile(band, run));
+		}
+	}
+
+	private Path bucketFile() {
+		return spillDir.resolve("bucket");
+	}
+
+	private void writeRecord(DataOutputStream out, int fileId, long[] hashes, int offset) throws IOException {
+		out.writeInt(fileId);
+		for(int hash=0;hash<numHashes;hash++) {
+			out.writeLong(hashes[offset+hash]);
+		}
+	}
+
+	/**
+	 * blockJoin
+	 *
+	 * Compares every pair of the images in the bucket file. The file is read as blocks of maxBucketSize images. Each block
+	 * is compared with itself in memory, then the images after it are read from the file one at a time and compared with it.
+	 *
+	 * @param bucketFileSize - number of images in the file.
+	 * @param band
+	 */
+	private void blockJoin(int bucketFileSize, int band) throws IOException {
+		if(bucketIds.length<maxBucketSize) {
+			bucketIds = new int[maxBucketSize];
+			bucketHashes = new long[maxBucketSize*numHashes];
+		}
+		long[] hashes = new long[numHashes];
+
+		for(int blockStart=0;blockStart<bucketFileSize;blockStart+=maxBucketSize) {
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(bucketFile()), BUFFER_SIZE))) {
+				in.skipNBytes((long)blockStart*(4+numHashes*8));
+				int blockSize = Math.min(maxBucketSize, bucketFileSize-blockStart);
+				for(int i=0;i<blockSize;i++) {
+					bucketIds[i] = in.readInt();
+					for(int hash=0;hash<numHashes;hash++) {
+						bucketHashes[i*numHashes+hash] = in.readLong();
+					}
+				}
+				comparePairs(blockSize, band);
+
+				for(int record=blockStart+blockSize;record<bucketFileSize;record++) {
+					int fileId = in.readInt();
+					for(int hash=0;hash<numHashes;hash++) {
+						hashes[hash] = in.readLong();
+					}
+					for(int i=0;i<blockSize;i++) {
+						comparePair(bucketIds[i], bucketHashes, i*numHashes, fileId, hashes, 0, band);
+					}
+				}
+			}
+		}
+		Files.deleteIfExists(bucketFile());
+	}
+
+	private void comparePairs(int bucketSize, int band) throws IOException {
+		for(int i=0;i<bucketSize;i++) {
+			for(int j=i+1;j<bucketSize;j++) {
+				comparePair(bucketIds[i], bucketHashes, i*numHashes, bucketIds[j], bucketHashes, j*numHashes, band);
+			}
+		}
+	}
+
+	/**
+	 * Writes the pair to the pairs file if it is close and this is the first band it has the same value in.
+	 */
+	private void comparePair(int fileId1, long[] hashes1, int offset1, int fileId2, long[] hashes2, int offset2, int band) throws IOException {
+		long hash1 = hashes1[offset1];
+		long hash2 = hashes2[offset2];
+		comparisons++;
+
+		if(Long.bitCount(hash1^hash2)>maxDistance || sameInEarlierBand(hash1, hash2, band)) return;
+		if(!passesChecks(hashes1, offset1, hashes2, offset2)) {
+			checkRejects++;
+			return;
+		}
+		pairsOut.writeInt(Math.min(fileId1, fileId2));
+		pairsOut.writeInt(Math.max(fileId1, fileId2));
+		pairedIds.set(fileId1);
+		pairedIds.set(fileId2);
+	}
+
+	/**
+	 * The hashes after the first must be close too.
+	 */
+	private boolean passesChecks(long[] hashes1, int offset1, long[] hashes2, int offset2) {
+		for(int hash=1;hash<numHashes;hash++) {
+			if(Long.bitCount(hashes1[offset1+hash]^hashes2[offset2+hash])>maxDistance) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A pair is reported by the first band it has the same value in.
+	 */
+	private boolean sameInEarlierBand(long hash1, long hash2, int band) {
+		for(int earlierBand=0;earlierBand<band;earlierBand++) {
+			if(bandValue(hash1, earlierBand)==bandValue(hash2, earlierBand)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int bandValue(long hash, int band) {
+		return (int)((hash>>>bandShift[band]) & ((1L<<bandBits[band])-1));
+	}
+
+	/**
+	 * getHashes
+	 *
+	 * Reads the hashes of the image back from the spill files. Only after join.
+	 *
+	 * @param fileId
+	 * @return
+	 */
+	public long[] getHashes(int fileId) {
+		ByteBuffer buffer = read(hashesChannel, (long)fileId*numHashes*8, numHashes*8);
+		long[] hashes = new long[numHashes];
+		for(int hash=0;hash<numHashes;hash++) {
+			hashes[hash] = buffer.getLong(hash*8);
+		}
+		return hashes;
+	}
+
+	public long getSize(int fileId) {
+		return read(infoChannel, (long)fileId*INFO_SIZE, 8).getLong(0);
+	}
+
+	public long getModified(int fileId) {
+		return read(infoChannel, (long)fileId*INFO_SIZE+8, 8).getLong(0);
+	}
+
+	/**
+	 *
+	 * @param fileId
+	 * @return - width of the image from its header, 0 if it is not known.
+	 */
+	public int getWidth(int fileId) {
+		return read(infoChannel, (long)fileId*INFO_SIZE+24, 4).getInt(0);
+	}
+
+	/**
+	 *
+	 * @param fileId
+	 * @return - height of the image from its header, 0 if it is not known.
+	 */
+	public int getHeight(int fileId) {
+		return read(infoChannel, (long)fileId*INFO_SIZE+28, 4).getInt(0);
+	}
+
+	public String getPath(int fileId) {
+		long pathOffset = read(infoChannel, (long)fileId*INFO_SIZE+16, 8).getLong(0);
+		int length = read(pathsChannel, pathOffset, 4).getInt(0);
+		return new String(read(pathsChannel, pathOffset+4, length).array(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads length bytes at the position. A read error stops the program, the file was just written.
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		try {
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer, position+buffer.position())<0) {
+					throw new EOFException();
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read spill file. " + e.getMessage(), e);
+		}
+		return buffer;
+	}
+
+	/**
+	 *
+	 * @return - number of pairs of hashes compared by join.
+	 */
+	public long comparisons() {
+		return comparisons;
+	}
+
+	/**
+	 *
+	 * @return - number of times an image was joined a block at a time because too many images had the same band value.
+	 */
+	public long blockJoinedImages() {
+		return blockJoinedImages;
+	}
+
+	/**
+	 *
+	 * @return - number of close pairs turned down because a hash after the first was too far.
+	 */
+	public long checkRejects() {
+		return checkRejects;
+	}
+
+	private void fail(IOException e) {
+		System.err.printf("Error : Could not write spill files in %s. %s\n", spillDir, e.getMessage());
+		failed = true;
+	}
+
+	/**
+	 * close
+	 *
+	 * Deletes the spill files.
+	 */
+	public void close() {
+		try {
+			for(DataOutputStream out : new DataOutputStream[] {hashesOut, infoOut, pathsOut, pairsOut}) {
+				if(out!=null) out.close();
+			}
+			for(FileChannel channel : new FileChannel[] {hashesChannel, infoChannel, pathsChannel}) {
+				if(channel!=null) channel.close();
+			}
+
+			List<Path> files = new ArrayList<>();
+			try(Stream<Path> list = Files.list(spillDir)) {
+				list.forEach(files::add);
+			}
+			for(Path file : files) {
+				Files.deleteIfExists(file);
+			}
+			Files.deleteIfExists(spillDir);
+		} catch (IOException e) {
+			System.err.printf("Error : Could not delete spill files in %s. %s\n", spillDir, e.getMessage());
+		}
+	}
+}
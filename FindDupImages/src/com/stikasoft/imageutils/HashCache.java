@@ -0,0 +1,210 @@
+package com.stikasoft.imageutils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * HashCache
+ *
+ * Keeps the image hashes between runs so unchanged images do not need to be loaded and hashed again.
+ * A hash is only used if the file size, modified time and hash algorithm are the same as when it was stored.
+ * All the hashes ImageHash.hashImageAll makes for the algorithm are kept, or all the hashes of hashImageOrientations.
+ *
+ * The cache file is a MappedHashIndex. Loading the cache only maps the file, the hashes are read from the mapped file
+ * when they are looked up. The hashes of the current run are written to a new index file by save.
+ *
+ * lookup and put can be called from many threads. load and save should only be called when nothing else is using the cache.
+ *
+ * @author Carl Stika
+ *
+ */
+public class HashCache {
+
+	/***
+	 * EntryListener
+	 *
+	 * Called by forEach with each file in the loaded cache.
+	 */
+	public interface EntryListener {
+		void entry(String path, long size, long modified, long[] hashes);
+	}
+
+	/***
+	 * Entry
+	 *
+	 * Hashes of one file that was not in the loaded cache, and the file info they were made from.
+	 */
+	private static class Entry {
+		long size;
+		long modified;
+		long[] hashes;
+
+		Entry(long size, long modified, long[] hashes) {
+			this.size = size;
+			this.modified = modified;
+			this.hashes = hashes;
+		}
+	}
+
+	private Path cacheFile;
+	private int algorithm;
+	private int numHashes;
+	private MappedHashIndex loadedIndex;
+	private boolean[] usedRecords = new boolean[0];
+	private Map<String, Entry> newEntries = new ConcurrentHashMap<>();
+
+	/**
+	 *
+	 * @param cacheFile - file the cache is loaded from and saved to.
+	 * @param algorithm - id of the hash algorithm. See ImageHash.
+	 */
+	public HashCache(Path cacheFile, int algorithm) {
+		this(cacheFile, algorithm, ImageHash.numHashes(algorithm));
+	}
+
+	/**
+	 *
+	 * @param cacheFile - file the cache is loaded from and saved to.
+	 * @param algorithm - id of the hash algorithm. See ImageHash.
+	 * @param numHashes - number of hashes kept for each file. A cache with a different number is not used.
+	 */
+	public HashCache(Path cacheFile, int algorithm, int numHashes) {
+		this.cacheFile = cacheFile;
+		this.algorithm = storedAlgorithm(algorithm);
+		this.numHashes = numHashes;
+	}
+
+	/**
+	 * storedAlgorithm
+	 *
+	 * The algorithm id that is written in the index file.
+	 * The hash version is kept with the algorithm so hashes from an older version of ImageHash are not used.
+	 *
+	 * @param algorithm - id of the hash algorithm. See ImageHash.
+	 * @return
+	 */
+	static int storedAlgorithm(int algorithm) {
+		return algorithm | (ImageHash.HASH_VERSION<<8);
+	}
+
+	/**
+	 * load
+	 *
+	 * Maps the cache file. If the file does not exist or was made with a different hash algorithm the cache is empty.
+	 *
+	 * @return - number of hashes in the cache.
+	 */
+	public int load() {
+		loadedIndex = null;
+		usedRecords = new boolean[0];
+
+		if(!MappedHashIndex.exists(cacheFile)) return 0;
+
+		try {
+			MappedHashIndex index = MappedHashIndex.open(cacheFile);
+			if(index.getAlgorithm()==algorithm && index.getNumHashes()==numHashes) {
+				loadedIndex = index;
+				usedRecords = new boolean[index.size()];
+			}
+		} catch (IOException e) {
+			System.out.printf("Could not read hash cache %s. It will be rebuilt. %s\n", cacheFile, e.getMessage());
+		}
+
+		return usedRecords.length;
+	}
+
+	/**
+	 * save
+	 *
+	 * Saves the hashes used in this run. Files that were not looked up or put are dropped so the cache does not keep deleted files.
+	 * The cache is written to a temporary file first so a failed save does not lose the old cache.
+	 * The loaded cache is still mapped, if it can not be replaced the hashes are kept in the pending file. See MappedHashIndex.replace.
+	 *
+	 * @return - true if the cache was saved.
+	 */
+	public boolean save() {
+		Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+
+		MappedHashIndex.Writer writer = new MappedHashIndex.Writer(algorithm, numHashes);
+		for(int record=0;record<usedRecords.length;record++) {
+			if(usedRecords[record]) {
+				writer.add(loadedIndex.getPath(record), loadedIndex.getSize(record), loadedIndex.getModified(record), loadedIndex.getHashes(record));
+			}
+		}
+		for(Map.Entry<String, Entry> mapEntry : newEntries.entrySet()) {
+			Entry entry = mapEntry.getValue();
+			writer.add(mapEntry.getKey(), entry.size, entry.modified, entry.hashes);
+		}
+
+		try {
+			writer.write(tempFile);
+		} catch (IOException e) {
+			System.err.printf("Error : Could not write hash cache %s. %s\n", tempFile, e.getMessage());
+			return false;
+		}
+
+		try {
+			if(!MappedHashIndex.replace(tempFile, cacheFile)) {
+				System.err.printf("Error : Could not replace hash cache %s while it is open. The hashes were saved to %s for the next run.\n",
+						cacheFile, MappedHashIndex.pendingFile(cacheFile));
+			}
+		} catch (IOException e) {
+			System.err.printf("Error : Could not write hash cache %s. %s\n", cacheFile, e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * lookup
+	 *
+	 * Finds the stored hashes of the file. The file is kept in the cache for the next run if it is found.
+	 *
+	 * @param path - full path of the file
+	 * @param size - current size of the file
+	 * @param modified - current modified time of the file
+	 * @return - the hashes or null if the file is not in the cache or has changed.
+	 */
+	public long[] lookup(String path, long size, long modified) {
+		if(loadedIndex==null) return null;
+		
+		int record = loadedIndex.findPath(path);
+		if(record!=MappedHashIndex.NOT_FOUND && loadedIndex.getSize(record)==size && loadedIndex.getModified(record)==modified) {
+			usedRecords[record] = true;
+			return loadedIndex.getHashes(record);
+		}
+		return null;
+	}
+
+	/**
+	 * forEach
+	 *
+	 * Calls the listener with every file in the loaded cache, in path order. Used to merge the caches written by shards of a search.
+	 *
+	 * @param listener
+	 */
+	public void forEach(EntryListener listener) {
+		if(loadedIndex==null) return;
+
+		for(int record=0;record<loadedIndex.size();record++) {
+			listener.entry(loadedIndex.getPath(record), loadedIndex.getSize(record), loadedIndex.getModified(record), loadedIndex.getHashes(record));
+		}
+	}
+
+	/**
+	 * put
+	 *
+	 * Stores the hashes of the file for the next run.
+	 *
+	 * @param path - full path of the file
+	 * @param size - size of the file when it was hashed
+	 * @param modified - modified time of the file when it was hashed
+	 * @param hashes - from ImageHash.hashImageAll or hashImageOrientations
+	 */
+	public void put(String path, long size, long modified, long[] hashes) {
+		newEntries.put(path, new Entry(size, modified, hashes));
+	}
+}
@@ -0,0 +1,327 @@
+package com.stikasoft.imageutils;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/***
+ * HashContext
+ *
+ * Buffers used to hash one image. ImageHash keeps one context for each thread so hashing an image does not allocate.
+ *
+ * The image is scaled down straight from the pixel data of its raster into a gray scale buffer. Each output pixel is the
+ * average of the area of the source it covers, every source pixel is read. The common 8 bit RGB and gray images are read
+ * from the raster data directly, other images are read a row at a time with getRGB. Gray samples are used as they are, the same as drawing
+ * the gray image into an RGB image does.
+ *
+ * A context must only be used by one thread.
+ *
+ * @author Carl Stika
+ *
+ */
+class HashContext {
+
+	public static final int MAX_SIZE = 32;
+	//Largest image of block averages made by downsample. The blocks are whole source pixels, so their edges can be up to a
+	//pixel from where they would be in an exact scale. Shrinking them to the output keeps that error under a pixel of the
+	//blocks instead of a pixel of the output.
+	private static final int MAX_GRID_SIZE = MAX_SIZE*2;
+
+	//How the rows of the current image are read
+	private static final int READ_BYTE_RGB = 0;
+	private static final int READ_BYTE_GRAY = 1;
+	private static final int READ_INT_RGB = 2;
+	private static final int READ_GET_RGB = 3;
+
+	//Gray scale image made by downsample. width x height values, row by row.
+	float[] luma = new float[MAX_SIZE*MAX_SIZE];
+
+	//Ways orient can turn an image. Transposing is done first.
+	static final int MIRROR = 1;
+	static final int FLIP = 2;
+	static final int TRANSPOSE = 4;
+
+	//Work buffers for the hashes
+	float[] pixels = new float[64];
+	float[] partial = new float[MAX_SIZE*MAX_SIZE];
+	float[] dct = new float[64];
+	//A second gray scale image, with the width and height swapped, and the output of orient
+	float[] transposed = new float[MAX_SIZE*MAX_SIZE];
+	float[] oriented = new float[MAX_SIZE*MAX_SIZE];
+
+	//Block averages made by downsample before they are shrunk to the output size
+	private float[] grid = new float[MAX_GRID_SIZE*MAX_GRID_SIZE];
+
+	//One row of the image for downsample. The offset in the row of each pixel, the gray scale of each pixel and the sums
+	//of each column over the rows of a block. They grow to the widest image seen.
+	private int[] pixelOffsets = new int[0];
+	private int[] rowPixels = new int[0];
+	private float[] rowLuma = new float[0];
+	private float[] columnSums = new float[0];
+
+	//Raster layout of the current image
+	private int sourceWidth;
+	private int sourceHeight;
+	private int readMode;
+	private byte[] byteData;
+	private int[] intData;
+	private int dataOffset;
+	private int pixelStride;
+	private int scanlineStride;
+	private int redOffset;
+	private int greenOffset;
+	private int blueOffset;
+	private int redShift;
+	private int greenShift;
+	private int blueShift;
+
+	/**
+	 * downsample
+	 *
+	 * Scales the image to width x height gray scale values in luma.
+	 * Every pixel of the image is read. The image is split into blocks of whole pixels, up to MAX_GRID_SIZE across and
+	 * down, and each block is averaged. Then shrink scales the block averages to the output size by the area each output
+	 * pixel covers. If the image is smaller than the grid there is a block for each pixel.
+	 * The rasters read directly are done a row at a time with HashKernels so the gray scale can be done with vectors. The
+	 * rows of a block are added into column sums with HashKernels too, then the columns of each block are added.
+	 *
+	 * @param image
+	 * @param width - at most MAX_SIZE
+	 * @param height - at most MAX_SIZE
+	 */
+	void downsample(BufferedImage image, int width, int height) {
+		sourceWidth = image.getWidth();
+		sourceHeight = image.getHeight();
+
+		setupRaster(image);
+
+		int gridWidth = Math.min(sourceWidth, MAX_GRID_SIZE);
+		int gridHeight = Math.min(sourceHeight, MAX_GRID_SIZE);
+
+		if(rowLuma.length<sourceWidth) {
+			pixelOffsets = new int[sourceWidth];
+			rowPixels = new int[sourceWidth];
+			rowLuma = new float[sourceWidth];
+			columnSums = new float[sourceWidth];
+		}
+		for(int x=0;x<sourceWidth;x++) {
+			pixelOffsets[x] = x*pixelStride;
+		}
+
+		for(int gridY=0;gridY<gridHeight;gridY++) {
+			int y0 = (int)(((long)gridY*sourceHeight)/gridHeight);
+			int y1 = (int)(((long)(gridY+1)*sourceHeight)/gridHeight);
+
+			Arrays.fill(columnSums, 0, sourceWidth, 0);
+			for(int y=y0;y<y1;y++) {
+				readRow(image, y);
+				HashKernels.addRow(rowLuma, columnSums, sourceWidth);
+			}
+
+			for(int gridX=0;gridX<gridWidth;gridX++) {
+				int x0 = (int)(((long)gridX*sourceWidth)/gridWidth);
+				int x1 = (int)(((long)(gridX+1)*sourceWidth)/gridWidth);
+
+				float sum = 0;
+				for(int x=x0;x<x1;x++) {
+					sum += columnSums[x];
+				}
+				grid[gridY*gridWidth+gridX] = sum/((y1-y0)*(x1-x0));
+			}
+		}
+
+		shrink(grid, gridWidth, gridHeight, width, height, luma);
+
+		byteData = null;
+		intData = null;
+	}
+
+	/**
+	 * readRow
+	 *
+	 * Gray scale values of row y of the image, put in rowLuma.
+	 */
+	private void readRow(BufferedImage image, int y) {
+		int base = dataOffset + y*scanlineStride;
+		switch(readMode) {
+			case READ_BYTE_RGB:
+				HashKernels.lumaRow(byteData, base, pixelOffsets, sourceWidth, redOffset, greenOffset, blueOffset, rowLuma);
+				break;
+			case READ_BYTE_GRAY:
+				HashKernels.grayRow(byteData, base+redOffset, pixelOffsets, sourceWidth, rowLuma);
+				break;
+			case READ_INT_RGB:
+				HashKernels.lumaRow(intData, base, pixelOffsets, sourceWidth, redShift, greenShift, blueShift, rowLuma);
+				break;
+			default:
+				image.getRGB(0, y, sourceWidth, 1, rowPixels, 0, sourceWidth);
+				for(int x=0;x<sourceWidth;x++) {
+					int color = rowPixels[x];
+					rowLuma[x] = toLuma((color>>16)&255, (color>>8)&255, color&255);
+				}
+				break;
+		}
+	}
+
+	/**
+	 * shrink
+	 *
+	 * Scales the gray scale image in luma down to newWidth x newHeight. Each output value is the average of the area of luma
+	 * it covers, the values on the edges of the area count for the part of them that is covered.
+	 *
+	 * @param width - size of the image in luma
+	 * @param height
+	 * @param newWidth - at most width
+	 * @param newHeight - at most height
+	 * @param output - newWidth x newHeight values, row by row
+	 */
+	void shrink(int width, int height, int newWidth, int newHeight, float[] output) {
+		shrink(luma, width, height, newWidth, newHeight, output);
+	}
+
+	/**
+	 * shrink
+	 *
+	 * Scales a gray scale image to newWidth x newHeight by area. It can also make an image bigger, then each output value
+	 * is the part of one input value it covers, or a blend of the two or four values it is over.
+	 *
+	 * @param input - width x height values, row by row
+	 * @param width
+	 * @param height
+	 * @param newWidth
+	 * @param newHeight
+	 * @param output - newWidth x newHeight values, row by row
+	 */
+	private static void shrink(float[] input, int width, int height, int newWidth, int newHeight, float[] output) {
+		float scaleX = (float)width/newWidth;
+		float scaleY = (float)height/newHeight;
+
+		for(int outY=0;outY<newHeight;outY++) {
+			float top = outY*scaleY;
+			float bottom = top+scaleY;
+
+			for(int outX=0;outX<newWidth;outX++) {
+				float left = outX*scaleX;
+				float right = left+scaleX;
+
+				float sum = 0;
+				for(int y=(int)top;y<bottom && y<height;y++) {
+					float coverY = Math.min(bottom, y+1)-Math.max(top, y);
+					for(int x=(int)left;x<right && x<width;x++) {
+						float coverX = Math.min(right, x+1)-Math.max(left, x);
+						sum += input[y*width+x]*coverX*coverY;
+					}
+				}
+				output[outY*newWidth+outX] = sum/(scaleX*scaleY);
+			}
+		}
+	}
+
+	/**
+	 * orient
+	 *
+	 * Turns or mirrors a gray scale image. The image is transposed first if TRANSPOSE is set, then mirrored left to right
+	 * and flipped top to bottom. Transposing and mirroring is a 90 degree turn clockwise, transposing and flipping is a
+	 * turn the other way.
+	 *
+	 * @param input - width x height values, row by row
+	 * @param width
+	 * @param height
+	 * @param orientation - MIRROR, FLIP and TRANSPOSE or'ed together
+	 * @param output - height x width values if transposed, otherwise width x height
+	 */
+	static void orient(float[] input, int width, int height, int orientation, float[] output) {
+		boolean transpose = (orientation&TRANSPOSE)!=0;
+		int outWidth = transpose ? height : width;
+		int outHeight = transpose ? width : height;
+
+		for(int y=0;y<outHeight;y++) {
+			int sourceY = ((orientation&FLIP)!=0) ? outHeight-1-y : y;
+			for(int x=0;x<outWidth;x++) {
+				int sourceX = ((orientation&MIRROR)!=0) ? outWidth-1-x : x;
+				output[y*outWidth+x] = transpose ? input[sourceX*width+sourceY] : input[sourceY*width+sourceX];
+			}
+		}
+	}
+
+	/**
+	 * setupRaster
+	 *
+	 * Works out how to read the pixels of the image.
+	 *
+	 * @param image
+	 */
+	private void setupRaster(BufferedImage image) {
+		readMode = READ_GET_RGB;
+
+		WritableRaster raster = image.getRaster();
+		SampleModel sampleModel = raster.getSampleModel();
+		DataBuffer dataBuffer = raster.getDataBuffer();
+		ColorModel colorModel = image.getColorModel();
+
+		if(colorModel.isAlphaPremultiplied() || dataBuffer.getNumBanks()!=1) return;
+
+		//pixel (x,y) of the image is at (x-translateX, y-translateY) in the sample model
+		int translateX = -raster.getSampleModelTranslateX();
+		int translateY = -raster.getSampleModelTranslateY();
+
+		if(dataBuffer instanceof DataBufferByte && sampleModel instanceof ComponentSampleModel && colorModel instanceof ComponentColorModel) {
+			ComponentSampleModel componentModel = (ComponentSampleModel)sampleModel;
+			ColorSpace colorSpace = colorModel.getColorSpace();
+			int[] bandOffsets = componentModel.getBandOffsets();
+
+			byteData = ((DataBufferByte)dataBuffer).getData();
+			pixelStride = componentModel.getPixelStride();
+			scanlineStride = componentModel.getScanlineStride();
+			dataOffset = dataBuffer.getOffset() + translateY*scanlineStride + translateX*pixelStride;
+
+			if(colorSpace.isCS_sRGB() && colorModel.getNumColorComponents()==3) {
+				redOffset = bandOffsets[0];
+				greenOffset = bandOffsets[1];
+				blueOffset = bandOffsets[2];
+				readMode = READ_BYTE_RGB;
+			}
+			else if(colorSpace.getType()==ColorSpace.TYPE_GRAY && colorModel.getNumColorComponents()==1 && colorModel.getComponentSize(0)==8) {
+				redOffset = bandOffsets[0];
+				readMode = READ_BYTE_GRAY;
+			}
+			else {
+				byteData = null;
+			}
+		}
+		else if(dataBuffer instanceof DataBufferInt && sampleModel instanceof SinglePixelPackedSampleModel && colorModel instanceof DirectColorModel) {
+			SinglePixelPackedSampleModel packedModel = (SinglePixelPackedSampleModel)sampleModel;
+			int[] masks = packedModel.getBitMasks();
+			int[] shifts = packedModel.getBitOffsets();
+
+			if(colorModel.getColorSpace().isCS_sRGB() && masks.length>=3
+					&& (masks[0]>>>shifts[0])==255 && (masks[1]>>>shifts[1])==255 && (masks[2]>>>shifts[2])==255) {
+				intData = ((DataBufferInt)dataBuffer).getData();
+				pixelStride = 1;
+				scanlineStride = packedModel.getScanlineStride();
+				dataOffset = dataBuffer.getOffset() + translateY*scanlineStride + translateX;
+				redShift = shifts[0];
+				greenShift = shifts[1];
+				blueShift = shifts[2];
+				readMode = READ_INT_RGB;
+			}
+		}
+	}
+
+	/**
+	 * Gray scale value of the color. Uses the same weights as the perceptual hash always has.
+	 */
+	static float toLuma(int red, int green, int blue) {
+		return 0.2126f*red + 0.7152f*green + 0.0722f*blue;
+	}
+}
@@ -0,0 +1,44 @@
+package com.stikasoft.imageutils;
+
+import java.util.List;
+
+/***
+ * HashIndex
+ * 
+ * Index of 64 bit image hashes that can find all the hashes within a hamming distance of a hash.
+ * 
+ * @author Carl Stika
+ *
+ * @param <T> - value stored with each hash
+ */
+public interface HashIndex<T> {
+
+	/**
+	 * Adds the hash to the index. The same hash can be added more than once.
+	 * 
+	 * @param hash
+	 * @param value
+	 */
+	void add(long hash, T value);
+
+	/**
+	 * Finds all the values whose hash is within maxDistance of the hash.
+	 * 
+	 * @param hash
+	 * @param maxDistance - largest distance to include.
+	 * @return - values found. Empty if there are none.
+	 */
+	List<T> search(long hash, int maxDistance);
+
+	/**
+	 * 
+	 * @return number of hashes in the index.
+	 */
+	int size();
+
+	/**
+	 * 
+	 * @return number of hashes compared by the searches so far. Only exact when the index is searched from one thread.
+	 */
+	long comparisons();
+}
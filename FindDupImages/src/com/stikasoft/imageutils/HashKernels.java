@@ -0,0 +1,141 @@
+package com.stikasoft.imageutils;
+
+/***
+ * HashKernels
+ *
+ * The inner loops of hashing, the gray scale conversion of a row of pixels and the sum of the rows of a block. Each loop
+ * has a plain Java version and a version in VectorKernels that uses the Vector API.
+ *
+ * The Vector API is still an incubator module so it is only used when the program is run with
+ * --add-modules jdk.incubator.vector and the CPU has 256 bit or wider vectors, AVX2 or AVX-512. It can be turned off at
+ * run time with setUseVector. Both versions give exactly the same results, the products and the rows are added in the
+ * same order, so hashes do not change when it is turned on or off.
+ *
+ * Hash distances are not done here. Java 17 has no vector bit count and the shift and add bit count on each lane was
+ * slower than Long.bitCount, which is a single instruction.
+ *
+ * @author Carl Stika
+ *
+ */
+public class HashKernels {
+
+	private static final boolean VECTOR_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() && VectorKernels.isSupported();
+
+	private static volatile boolean useVector = VECTOR_AVAILABLE;
+
+	private HashKernels() {
+	}
+
+	/**
+	 *
+	 * @return - true if the Vector API can be used.
+	 */
+	public static boolean isVectorAvailable() {
+		return VECTOR_AVAILABLE;
+	}
+
+	/**
+	 * setUseVector
+	 *
+	 * Turns the Vector API versions on or off. They can only be turned on if they are available.
+	 *
+	 * @param use
+	 */
+	public static void setUseVector(boolean use) {
+		useVector = use && VECTOR_AVAILABLE;
+	}
+
+	public static boolean isUsingVector() {
+		return useVector;
+	}
+
+	/**
+	 * lumaRow
+	 *
+	 * Gray scale values of count pixels of a row of 8 bit RGB samples.
+	 *
+	 * @param data - raster data
+	 * @param base - offset of the row
+	 * @param offsets - offset of each pixel from the start of the row
+	 * @param count - number of pixels
+	 * @param redOffset - offset of each color in a pixel
+	 * @param greenOffset
+	 * @param blueOffset
+	 * @param luma - output
+	 */
+	static void lumaRow(byte[] data, int base, int[] offsets, int count, int redOffset, int greenOffset, int blueOffset, float[] luma) {
+		int start = 0;
+		if(useVector) {
+			start = VectorKernels.lumaRow(data, base, offsets, count, redOffset, greenOffset, blueOffset, luma);
+		}
+		for(int i=start;i<count;i++) {
+			int offset = base + offsets[i];
+			luma[i] = HashContext.toLuma(data[offset+redOffset]&255, data[offset+greenOffset]&255, data[offset+blueOffset]&255);
+		}
+	}
+
+	/**
+	 * lumaRow
+	 *
+	 * Gray scale values of count pixels of a row of packed int RGB pixels.
+	 *
+	 * @param data - raster data
+	 * @param base - offset of the row
+	 * @param offsets - offset of each pixel from the start of the row
+	 * @param count - number of pixels
+	 * @param redShift - shift of each color in a pixel
+	 * @param greenShift
+	 * @param blueShift
+	 * @param luma - output
+	 */
+	static void lumaRow(int[] data, int base, int[] offsets, int count, int redShift, int greenShift, int blueShift, float[] luma) {
+		int start = 0;
+		if(useVector) {
+			start = VectorKernels.lumaRow(data, base, offsets, count, redShift, greenShift, blueShift, luma);
+		}
+		for(int i=start;i<count;i++) {
+			int pixel = data[base + offsets[i]];
+			luma[i] = HashContext.toLuma((pixel>>>redShift)&255, (pixel>>>greenShift)&255, (pixel>>>blueShift)&255);
+		}
+	}
+
+	/**
+	 * grayRow
+	 *
+	 * Values of count pixels of a row of 8 bit gray samples.
+	 *
+	 * @param data - raster data
+	 * @param base - offset of the row
+	 * @param offsets - offset of each pixel from the start of the row
+	 * @param count - number of pixels
+	 * @param luma - output
+	 */
+	static void grayRow(byte[] data, int base, int[] offsets, int count, float[] luma) {
+		int start = 0;
+		if(useVector) {
+			start = VectorKernels.grayRow(data, base, offsets, count, luma);
+		}
+		for(int i=start;i<count;i++) {
+			luma[i] = data[base + offsets[i]]&255;
+		}
+	}
+
+	/**
+	 * addRow
+	 *
+	 * Adds a row of gray scale values to the sums of each column.
+	 *
+	 * @param row
+	 * @param sums - added to
+	 * @param count - number of values
+	 */
+	static void addRow(float[] row, float[] sums, int count) {
+		int start = 0;
+		if(useVector) {
+			start = VectorKernels.addRow(row, sums, count);
+		}
+		for(int i=start;i<count;i++) {
+			sums[i] += row[i];
+		}
+	}
+}
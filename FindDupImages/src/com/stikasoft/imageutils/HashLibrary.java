@@ -0,0 +1,182 @@
+package com.stikasoft.imageutils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/***
+ * HashLibrary
+ *
+ * A prebuilt index of the hashes of an image library that new images can be checked against.
+ * The library file is the hash cache of a normal run over the library directory, so any library that has been searched
+ * once already has one. The file is memory mapped so opening a library of a million images is instant.
+ *
+ * Images can be added to the library. They are only written to the file by save.
+ *
+ * search and add can be called from many threads.
+ *
+ * @author Carl Stika
+ *
+ */
+public class HashLibrary {
+
+	/***
+	 * Entry
+	 *
+	 * Image added to the library.
+	 */
+	private static class Entry {
+		long size;
+		long modified;
+		long[] hashes;
+
+		Entry(long size, long modified, long[] hashes) {
+			this.size = size;
+			this.modified = modified;
+			this.hashes = hashes;
+		}
+	}
+
+	private Path libraryFile;
+	private int algorithm;
+	private int numHashes;
+	private MappedHashIndex index;
+	private Map<String, Entry> addedEntries = new ConcurrentHashMap<>();
+
+	/**
+	 *
+	 * @param libraryFile - hash cache file of the library.
+	 * @param algorithm - id of the hash algorithm. See ImageHash.
+	 */
+	public HashLibrary(Path libraryFile, int algorithm) {
+		this.libraryFile = libraryFile;
+		this.algorithm = HashCache.storedAlgorithm(algorithm);
+		this.numHashes = ImageHash.numHashes(algorithm);
+	}
+
+	/**
+	 * load
+	 *
+	 * Maps the library file.
+	 *
+	 * @return - false if the file could not be read or was made with a different hash.
+	 */
+	public boolean load() {
+		try {
+			index = MappedHashIndex.open(libraryFile);
+		} catch (IOException e) {
+			System.out.printf("Could not read library %s. %s\n", libraryFile, e.getMessage());
+			return false;
+		}
+
+		if(index.getAlgorithm()!=algorithm || index.getNumHashes()!=numHashes) {
+			System.out.printf("Library %s was made with a different hash. Use the same -H option as when it was made.\n", libraryFile);
+			index = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @return - number of images in the library file.
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * search
+	 *
+	 * Finds the library images whose hash is within maxDistance of the hash.
+	 *
+	 * @param hash
+	 * @param maxDistance
+	 * @param found - called with the record number of each close image.
+	 */
+	public void search(long hash, int maxDistance, IntConsumer found) {
+		index.search(hash, maxDistance, found);
+	}
+
+	public String getPath(int record) {
+		return index.getPath(record);
+	}
+
+	public long getHash(int record) {
+		return index.getHash(record);
+	}
+
+	/**
+	 *
+	 * @param record
+	 * @param hash - which hash, see ImageHash.hashImageAll.
+	 * @return
+	 */
+	public long getHash(int record, int hash) {
+		return index.getHash(record, hash);
+	}
+
+	public long getSize(int record) {
+		return index.getSize(record);
+	}
+
+	/**
+	 * add
+	 *
+	 * Adds the image to the library. If the path is already in the library it is replaced.
+	 *
+	 * @param path - full path of the file
+	 * @param size
+	 * @param modified
+	 * @param hashes - from ImageHash.hashImageAll. Only the hashes of the image as it is are kept from hashImageOrientations.
+	 */
+	public void add(String path, long size, long modified, long[] hashes) {
+		addedEntries.put(path, new Entry(size, modified, hashes));
+	}
+
+	/**
+	 *
+	 * @return - number of images added since the library was loaded.
+	 */
+	public int numAdded() {
+		return addedEntries.size();
+	}
+
+	/**
+	 * save
+	 *
+	 * Writes the library with the added images. The new file is written next to the old one and then moved over it.
+	 * The library is still mapped, if it can not be replaced the new file is kept as the pending file. See MappedHashIndex.replace.
+	 *
+	 * @return - true if the library was saved.
+	 */
+	public boolean save() {
+		Path tempFile = libraryFile.resolveSibling(libraryFile.getFileName() + ".tmp");
+
+		MappedHashIndex.Writer writer = new MappedHashIndex.Writer(algorithm, numHashes);
+		for(int record=0;record<index.size();record++) {
+			String path = index.getPath(record);
+			if(!addedEntries.containsKey(path)) {
+				writer.add(path, index.getSize(record), index.getModified(record), index.getHashes(record));
+			}
+		}
+		for(Map.Entry<String, Entry> mapEntry : addedEntries.entrySet()) {
+			Entry entry = mapEntry.getValue();
+			writer.add(mapEntry.getKey(), entry.size, entry.modified, entry.hashes);
+		}
+
+		try {
+			writer.write(tempFile);
+			if(!MappedHashIndex.replace(tempFile, libraryFile)) {
+				System.err.printf("Error : Could not replace library %s while it is open. The library was saved to %s for the next run.\n",
+						libraryFile, MappedHashIndex.pendingFile(libraryFile));
+			}
+		} catch (IOException e) {
+			System.err.printf("Error : Could not write library %s. %s\n", libraryFile, e.getMessage());
+			return false;
+		}
+		return true;
+	}
+}
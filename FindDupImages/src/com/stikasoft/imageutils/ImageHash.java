@@ -1,329 +1,647 @@
-package com.stikasoft.imageutils;
-
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
-
-/***
- * ImageHash
- * 
- * Class to create a hash for the image.
- * This is a simple hash. It is quick and good enough for my application. This hash will handle some scaling and color changes.
- * 
- * @author Carl Stika
- *
- */
-public class ImageHash {
-
-	/**
-	 * Simple average hash. 
-	 * 
-	 * 1) Reduce size. Scale Image to 8x8 and make it gray scale.
- 	 * 2) Reduce color. The tiny 8x8 picture is converted to a grayscale. This changes the hash from 64 pixels (64 red, 64 green, and 64 blue) to 64 total colors.
-	 * 3) Average the colors. Compute the mean value of the 64 colors.
-	 * 4) Compute the bits. This is the fun part. Each bit is simply set based on whether the color value is above or below the mean.
-	 * 5) Construct the hash. Set the 64 bits into a 64-bit integer. The order does not matter, just as long as you are consistent. (I set the bits from left to right, top to bottom using big-endian.)
-	 * @param image
-	 * @return
-	 */
-	public String AverageHash(BufferedImage image) {
-		long time = System.currentTimeMillis();
-		String hashString = "";
-		
-		//steps 1 and 2
-		BufferedImage scaleImage = scaleImage(image, 8, 8);
-		
-		float[] pixels = new float[64];
-		int index = 0;
-		float average = 0;
-		for(int j=0;j<8;j++) {
-			for(int i=0;i<8;i++) {
-				int color = scaleImage.getRGB(i, j);
-				//convert to gray scale
-				float gray = convertToGray(color);
-
-				pixels[index] = gray;
-				average += pixels[index];
-				index++;
-			}
-		}
-		average /= 64;
-		
-		hashString = createHashString(pixels, (int)average);
-//		System.out.println("average = " + average);
-//		System.out.println("AhashString = " + hashString + " time = " + (System.currentTimeMillis()-time) + " ms");
-		
-		return hashString;
-	}
-
-
-
-
-	/**
-	 * phash
-	 * 
-	 * 1) reduce the size to 32x32
-	 * 2) turn to gray scale
-	 * 3) create a 32x32 DCT but take the 8x8 top corner
-	 * 4) compute average value
-	 * 5) turn each pixel into a 0 or 1.
-	 * @param image
-	 * @return
-	 */
-	public String PerceptualHash(BufferedImage image) {
-		long time = System.currentTimeMillis();
-		String hashString = "";
-		BufferedImage scaleImage = scaleImage(image, 32, 32);
-		
-		float[][] imageMatrix = new float[32][32];
-		for(int j=0;j<32;j++) {
-			for(int i=0;i<32;i++) {
-				int color = scaleImage.getRGB(i, j);
-				int gray = (int)( (0.2126f*(float)(((color>>16)&255)) + 
-								  (0.7512f*(float)((color>>8)&255)) + 
-								  (0.0722f*(float)(color&255))));
-					
-				imageMatrix[j][i] = ((float)gray) - 127.5f; //convert to -127 to 127
-				
-			}
-		}
-		
-		float[][] dctMatrix = new float[32][32];
-		DCT(dctMatrix, imageMatrix);
-
-		
-
-		//---------------------------------------------
-		//test inverse the dct to see the new test image
-		InverseDCT(imageMatrix, dctMatrix);
-		//put it back into the image for display
-		for(int j=0;j<32;j++) {
-			for(int i=0;i<32;i++) {
-				int gray = ((int)(imageMatrix[j][i]+127.5f))&255;
-				scaleImage.setRGB(i,  j,  ((255<<24)|(gray<<16)|(gray<<8)|gray));
-			}
-		}
-		
-		//---------------------------------------------
-		
-		
-		//take the top 8x8 matrix
-		float[] pixels = new float[64];
-		int index = 0;
-		float average = 0;
-		for(int j=0;j<8;j++) {
-			for(int i=0;i<8;i++) {
-				pixels[index] = dctMatrix[j][i];
-				if(i!=0) //do not use the first value for the average 
-				{
-					average += pixels[index];
-				}
-				index++;
-			}
-		}
-		average /= 63; //not include the first value
-		
-		//Covert the pixels to hashstring
-		System.out.println("average = " + average);
-		hashString = createHashString(pixels, average);
-		System.out.println("PhashString = " + hashString + " time = " + (System.currentTimeMillis()-time) + " ms");
-		
-
-		return hashString;
-	}
-
-	/**
-	 * use the difference between two pixels to generate the hash.
-	 * 
-	 * @param image
-	 * @return
-	 */
-	public String DifferenceHash(BufferedImage image) {
-		long time = System.currentTimeMillis();
-		String hashString = "";
-		
-		//steps 1 and 2
-		BufferedImage scaleImage = scaleImage(image, 9, 8);
-		
-		float[] pixels = new float[64];
-		int index = 0;
-		for(int j=0;j<8;j++) {
-			for(int i=0;i<9;i++) {
-				int color = scaleImage.getRGB(i, j);
-				//convert to gray scale
-				float gray = convertToGray(color);
-				
-				//Do difference of the previous value
-				if(i>0) {
-					//Subtract from the previous
-					pixels[index-1] -= gray;
-				}
-
-				//If we are not at the end of a column store the current value
-				if(i<8) {
-					pixels[index] = gray;
-					index++;
-				}
-				
-				
-			}
-		}
-
-		hashString = createHashString(pixels, 0.0f);
-		
-		return hashString;
-	}
-
-	private void showMatrix(float[][] dctMatrix) {
-		for(int j=0;j<dctMatrix.length;j++) {
-			for(int i=0;i<dctMatrix[j].length;i++) {
-				System.out.print("" + ((int)dctMatrix[j][i]) + ", ");
-			}
-			System.out.println("");
-		}
-		
-	}
-
-	public void DCT(float[][] DCTMatrix, float[][] Matrix) {
-
-		int N = Matrix[0].length;
-		int M = Matrix.length;
-		
-		float fN = (float)N;
-		float fM = (float)M;
-		for (int u = 0; u < N; ++u) {
-	        for (int v = 0; v < M; ++v) {
-	        	DCTMatrix[u][v] = 0;
-	        	for (float i = 0; i < N; i++) {
-	        		for (float j = 0; j < M; j++) {
-	        			DCTMatrix[u][v] += Matrix[(int)i][(int)j] * 
-	        							Math.cos((Math.PI/fN)*(i+0.5f)*u) *
-	        							Math.cos((Math.PI/fM)*(j+0.5f)*v);
-	        		}               
-	        	}
-	        }  
-		}
-	}
-
-	/**
-	 * Giving the DCT Matrix it will do the inverse DCT
-	 * @param Matrix
-	 * @param DCTMatrix
-	 */
-	public void InverseDCT(float[][] Matrix, float[][] DCTMatrix){
-		int N = DCTMatrix[0].length;
-		int M = DCTMatrix.length;
-	    for (int u = 0; u < N; ++u) {
-	        for (int v = 0; v < M; ++v) {
-//	          Matrix[u][v] = 1.0f/4.0f*DCTMatrix[0][0];
-		          Matrix[u][v] = 0.25f*DCTMatrix[0][0];
-	          for(int i = 1; i < N; i++){
-	        	  Matrix[u][v] += 0.5f*DCTMatrix[i][0];
-	          }
-	          for(int j = 1; j < M; j++){
-	        	  Matrix[u][v] += 0.5f*DCTMatrix[0][j];
-	          }
-
-	          for (int i = 1; i < N; i++) {
-	        	  for (int j = 1; j < M; j++) {
-	        		  Matrix[u][v] += DCTMatrix[i][j] * (float)Math.cos((Math.PI/N)*(u+0.5f)*i)*Math.cos((Math.PI/M)*(v+0.5f)*j);
-	              }               
-	          }
-	          Matrix[u][v] *= 2.0f/((float)N)*2.0f/((float)M);
-	        }
-	    }  
-	 }
-
-	private String createHashString(float[] pixels, float average) {
-		String hashString = "";
-		
-		char[] digits = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
-		int buffer = 0;
-		int numDigits = 0;
-		for(int i=0;i<64;i++) {
-			int bit = 0;
-			if(pixels[i]<average) {
-				pixels[i] = 0;
-			}
-			else { 
-				pixels[i] = 255;
-				bit = 1;
-			}
-			buffer = (buffer<<1)|bit;
-			numDigits++;
-			if(numDigits==4) {
-				hashString += digits[buffer];
-				buffer = 0;
-				numDigits = 0;
-			}
-		}
-		
-		return hashString;
-
-	}
-	/**
-	 * Hamming distance between two hashes.
-	 * 
-	 * @param hash1
-	 * @param hash2
-	 * @return
-	 */
-	public int distanceBetweenHash(String hash1, String hash2) {
-		int diff = 0;
-		
-		for(int i=0;i<hash1.length();i++) {
-			int d1 = hexToInt(hash1.charAt(i));
-			int d2 = hexToInt(hash2.charAt(i));
-			
-			//find difference between hashs
-			int combits = d1^d2;
-			for(int j=0;j<4;j++) {
-				if((combits&1)==1) diff++;
-				combits>>=1;
-			}
-		}
-		
-		return diff;
-	}
-	
-	private int hexToInt(char c) {
-		if(c>='0' || c<='9') return (c-'0');
-		if(c>='a' || c<='f') return (c-'a')+10;
-		if(c>='A' || c<='F') return (c-'A')+10;
-		
-		return 0;
-	}
-
-	/**
-	 * Scale the image.
-	 * I could have the scale operation change to gray scale but I would rather do it as a 
-	 * Separate step so I can control the grayscale conversion
-	 * @param image
-	 * @param newWidth
-	 * @param newHeight
-	 * @return
-	 */
-	private BufferedImage scaleImage(BufferedImage image, int newWidth, int newHeight) {
-		BufferedImage output = new BufferedImage(newWidth,  newHeight,  BufferedImage.TYPE_4BYTE_ABGR);
-		
-		Graphics2D g2d = (Graphics2D)output.getGraphics();
-		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-		
-		g2d.drawImage(image, 0, 0, newWidth, newHeight, 0, 0, image.getWidth(), image.getHeight(), null);
-		g2d.dispose();
-		
-		return output;
-	}
-	private float convertToGray(int color) {
-/*		float gray = ( (0.2126f*(float)(((color>>16)&255)) + 
-				  (0.7512f*(float)((color>>8)&255)) + 
-				  (0.0722f*(float)(color&255))));*/
-/*				int gray = (int)( (0.299f*(float)(((color>>16)&255)) + 
-		  (0.587f*(float)((color>>8)&255)) + 
-		  (0.114f*(float)(color&255))));
-*/					
-		
-		float gray = (float)(color&255);
-		return gray;
-	}
+package com.stikasoft.imageutils;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/***
+ * ImageHash
+ * 
+ * Class to create a hash for the image.
+ * This is a simple hash. It is quick and good enough for my application. This hash will handle some scaling and color changes.
+ * 
+ * @author Carl Stika
+ *
+ */
+public class ImageHash {
+
+	//Ids for the hash algorithms. Stored with cached hashes so a hash from a different algorithm is not used.
+	public static final int DIFFERENCE_HASH = 1;
+	public static final int AVERAGE_HASH = 2;
+	public static final int PERCEPTUAL_HASH = 3;
+	//The difference hash to find close images, then the average and perceptual hashes to check them. See hashImageAll.
+	public static final int CASCADE_HASH = 4;
+
+	//Number of ways an image can be turned or mirrored. See hashImageOrientations.
+	public static final int NUM_ORIENTATIONS = 8;
+
+	//Changed when the hashes made by this class change so hashes cached by an older version are not used.
+	public static final int HASH_VERSION = 3;
+
+	//Images are scaled to at most 32x32 by averaging every pixel, so a bigger source adds time but little to the hash.
+	public static final int MIN_SOURCE_SIZE = 256;
+	//Smallest thumbnail that is still good enough to hash.
+	public static final int MIN_THUMBNAIL_SIZE = 64;
+
+	private static final int PHASH_SIZE = 32;
+	private static final int PHASH_LOW_SIZE = 8;
+	//All 32 frequencies, for DCT and InverseDCT of 32x32 matrices. The perceptual hash uses the first 8.
+	private static final float[][] PHASH_COS_TABLE = cosineTable(PHASH_SIZE, PHASH_SIZE);
+
+	//Buffers for hashing. One for each thread so the hashes do not allocate.
+	private ThreadLocal<HashContext> contexts = ThreadLocal.withInitial(HashContext::new);
+
+	/**
+	 * hashImage
+	 * 
+	 * Makes the 64 bit hash of the image with the algorithm.
+	 * 
+	 * @param image
+	 * @param algorithm - DIFFERENCE_HASH, AVERAGE_HASH or PERCEPTUAL_HASH
+	 * @return
+	 */
+	public long hashImage(BufferedImage image, int algorithm) {
+		switch(algorithm) {
+			case AVERAGE_HASH:
+				return AverageHash64(image);
+			case PERCEPTUAL_HASH:
+				return PerceptualHash64(image);
+			case CASCADE_HASH:
+				return hashImageAll(image, algorithm)[0];
+			default:
+				return DifferenceHash64(image);
+		}
+	}
+
+	/**
+	 * numHashes
+	 * 
+	 * @param algorithm
+	 * @return - number of hashes hashImageAll makes for the algorithm.
+	 */
+	public static int numHashes(int algorithm) {
+		return (algorithm==CASCADE_HASH) ? 3 : 1;
+	}
+
+	/**
+	 * hashImageAll
+	 * 
+	 * Makes all the hashes of the image the algorithm uses. The first hash is the one close images are found with, the others
+	 * are used to check the images that are found. Only CASCADE_HASH has more than one.
+	 * 
+	 * The cascade hashes are all made from one 32x32 gray scale image so the image is only scaled once. The perceptual hash
+	 * is the same as PerceptualHash64, the difference and average hashes are made by averaging the 32x32 image down to
+	 * 9x8 and 8x8 so they are close to, but not always the same as, DifferenceHash64 and AverageHash64.
+	 * 
+	 * @param image
+	 * @param algorithm
+	 * @return - the difference, average and perceptual hash for CASCADE_HASH, otherwise the hash of the algorithm.
+	 */
+	public long[] hashImageAll(BufferedImage image, int algorithm) {
+		if(algorithm!=CASCADE_HASH) {
+			return new long[] {hashImage(image, algorithm)};
+		}
+		
+		HashContext context = contexts.get();
+		context.downsample(image, PHASH_SIZE, PHASH_SIZE);
+		
+		long[] hashes = new long[3];
+		context.shrink(PHASH_SIZE, PHASH_SIZE, 9, 8, context.partial);
+		hashes[0] = differenceHash(context.partial, context.pixels);
+		context.shrink(PHASH_SIZE, PHASH_SIZE, 8, 8, context.pixels);
+		hashes[1] = averageHash(context.pixels);
+		//last as it changes the gray scale image
+		hashes[2] = perceptualHash(context);
+		return hashes;
+	}
+
+	/**
+	 * hashImageOrientations
+	 * 
+	 * Makes the hashes of hashImageAll for each of the 8 ways the image can be turned or mirrored, so an image can be found
+	 * when it has been turned 90, 180 or 270 degrees, mirrored or both. The image is scaled once and each orientation is
+	 * made by turning the small gray scale image, not the image. The hashes of orientation 0 are the same as hashImageAll.
+	 * 
+	 * The perceptual hash does not even turn the gray scale image. Mirroring the image only changes the sign of the odd
+	 * frequencies of the DCT and transposing the image transposes the DCT, so the DCT is only done once.
+	 * The difference hash compares pixels across a row, so the turns of 90 and 270 degrees need the image scaled to 8x9 as well as 9x8.
+	 * 
+	 * @param image
+	 * @param algorithm
+	 * @return - NUM_ORIENTATIONS times numHashes hashes. The hashes of orientation n start at n*numHashes. The orientations
+	 * are the image transposed (4), mirrored left to right (1) and flipped top to bottom (2) added together, see HashContext.orient.
+	 */
+	public long[] hashImageOrientations(BufferedImage image, int algorithm) {
+		HashContext context = contexts.get();
+		int numHashes = numHashes(algorithm);
+		long[] hashes = new long[NUM_ORIENTATIONS*numHashes];
+		
+		switch(algorithm) {
+			case AVERAGE_HASH:
+				context.downsample(image, 8, 8);
+				averageHashOrientations(context, context.luma, hashes, numHashes, 0);
+				break;
+			case PERCEPTUAL_HASH:
+				context.downsample(image, PHASH_SIZE, PHASH_SIZE);
+				perceptualHashOrientations(context, hashes, numHashes, 0);
+				break;
+			case CASCADE_HASH:
+				context.downsample(image, PHASH_SIZE, PHASH_SIZE);
+				context.shrink(PHASH_SIZE, PHASH_SIZE, 9, 8, context.partial);
+				context.shrink(PHASH_SIZE, PHASH_SIZE, 8, 9, context.transposed);
+				differenceHashOrientations(context, context.partial, context.transposed, hashes, numHashes, 0);
+				context.shrink(PHASH_SIZE, PHASH_SIZE, 8, 8, context.transposed);
+				averageHashOrientations(context, context.transposed, hashes, numHashes, 1);
+				//last as it changes the gray scale image
+				perceptualHashOrientations(context, hashes, numHashes, 2);
+				break;
+			default:
+				context.downsample(image, 8, 9);
+				System.arraycopy(context.luma, 0, context.transposed, 0, 8*9);
+				context.downsample(image, 9, 8);
+				differenceHashOrientations(context, context.luma, context.transposed, hashes, numHashes, 0);
+				break;
+		}
+		return hashes;
+	}
+
+	/**
+	 * closestOrientation
+	 * 
+	 * @param hashes - from hashImageOrientations, or hashImageAll
+	 * @param numHashes - number of hashes of each orientation
+	 * @param otherHash - first hash of another image
+	 * @return - the first hash of the orientation that is closest to the other hash.
+	 */
+	public static long closestOrientation(long[] hashes, int numHashes, long otherHash) {
+		long closest = hashes[0];
+		for(int offset=numHashes;offset<hashes.length;offset+=numHashes) {
+			if(Long.bitCount(hashes[offset]^otherHash)<Long.bitCount(closest^otherHash)) {
+				closest = hashes[offset];
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * isTransposed
+	 * 
+	 * @param orientation - 0 to NUM_ORIENTATIONS-1, see hashImageOrientations
+	 * @return - true if the orientation turns the image on its side, so its width and height swap.
+	 */
+	public static boolean isTransposed(int orientation) {
+		return (orientation&HashContext.TRANSPOSE)!=0;
+	}
+
+	/**
+	 * Average hash of each orientation of the 8x8 gray scale image, put in hashes at hash.
+	 */
+	private void averageHashOrientations(HashContext context, float[] gray, long[] hashes, int numHashes, int hash) {
+		for(int orientation=0;orientation<NUM_ORIENTATIONS;orientation++) {
+			HashContext.orient(gray, 8, 8, orientation, context.oriented);
+			hashes[orientation*numHashes+hash] = averageHash(context.oriented);
+		}
+	}
+
+	/**
+	 * Difference hash of each orientation, put in hashes at hash.
+	 * 
+	 * @param gray - 9x8 gray scale image
+	 * @param grayTransposed - 8x9 gray scale image, for the orientations that are transposed
+	 */
+	private void differenceHashOrientations(HashContext context, float[] gray, float[] grayTransposed, long[] hashes, int numHashes, int hash) {
+		for(int orientation=0;orientation<NUM_ORIENTATIONS;orientation++) {
+			if((orientation&HashContext.TRANSPOSE)!=0) {
+				HashContext.orient(grayTransposed, 8, 9, orientation, context.oriented);
+			}
+			else {
+				HashContext.orient(gray, 9, 8, orientation, context.oriented);
+			}
+			hashes[orientation*numHashes+hash] = differenceHash(context.oriented, context.pixels);
+		}
+	}
+
+	/**
+	 * Perceptual hash of each orientation of the 32x32 gray scale image in the context, put in hashes at hash.
+	 * The luma buffer is changed.
+	 */
+	private void perceptualHashOrientations(HashContext context, long[] hashes, int numHashes, int hash) {
+		perceptualDCT(context);
+		
+		float[] dct = context.dct;
+		float[] oriented = context.oriented;
+		for(int orientation=0;orientation<NUM_ORIENTATIONS;orientation++) {
+			for(int u=0;u<PHASH_LOW_SIZE;u++) {
+				for(int v=0;v<PHASH_LOW_SIZE;v++) {
+					//u is the frequency down the image and v across it
+					float value = ((orientation&HashContext.TRANSPOSE)!=0) ? dct[v*PHASH_LOW_SIZE+u] : dct[u*PHASH_LOW_SIZE+v];
+					if((orientation&HashContext.MIRROR)!=0 && (v&1)!=0) value = -value;
+					if((orientation&HashContext.FLIP)!=0 && (u&1)!=0) value = -value;
+					oriented[u*PHASH_LOW_SIZE+v] = value;
+				}
+			}
+			hashes[orientation*numHashes+hash] = dctHash(oriented);
+		}
+	}
+
+	/**
+	 * Simple average hash. 
+	 * 
+	 * 1) Reduce size. Scale Image to 8x8 and make it gray scale.
+ 	 * 2) Reduce color. The tiny 8x8 picture is converted to a grayscale. This changes the hash from 64 pixels (64 red, 64 green, and 64 blue) to 64 total colors.
+	 * 3) Average the colors. Compute the mean value of the 64 colors.
+	 * 4) Compute the bits. This is the fun part. Each bit is simply set based on whether the color value is above or below the mean.
+	 * 5) Construct the hash. Set the 64 bits into a 64-bit integer. The order does not matter, just as long as you are consistent. (I set the bits from left to right, top to bottom using big-endian.)
+	 * @param image
+	 * @return
+	 */
+	public String AverageHash(BufferedImage image) {
+		return hashToString(AverageHash64(image));
+	}
+
+	/**
+	 * Average hash as a 64 bit value. See AverageHash.
+	 * 
+	 * @param image
+	 * @return
+	 */
+	public long AverageHash64(BufferedImage image) {
+		HashContext context = contexts.get();
+		
+		//steps 1 and 2
+		context.downsample(image, 8, 8);
+		
+		return averageHash(context.luma);
+	}
+
+	/**
+	 * Average hash of the 8x8 gray scale image.
+	 */
+	private long averageHash(float[] pixels) {
+		float average = 0;
+		for(int index=0;index<64;index++) {
+			average += pixels[index];
+		}
+		average /= 64;
+		
+		return createHash(pixels, (int)average);
+	}
+
+	/**
+	 * phash
+	 * 
+	 * 1) reduce the size to 32x32
+	 * 2) turn to gray scale
+	 * 3) create a 32x32 DCT but take the 8x8 top corner
+	 * 4) compute average value
+	 * 5) turn each pixel into a 0 or 1.
+	 * @param image
+	 * @return
+	 */
+	public String PerceptualHash(BufferedImage image) {
+		return hashToString(PerceptualHash64(image));
+	}
+
+	/**
+	 * Perceptual hash as a 64 bit value. See PerceptualHash.
+	 * Only the 8x8 low frequency corner of the DCT is computed.
+	 * 
+	 * @param image
+	 * @return
+	 */
+	public long PerceptualHash64(BufferedImage image) {
+		HashContext context = contexts.get();
+		context.downsample(image, PHASH_SIZE, PHASH_SIZE);
+		
+		return perceptualHash(context);
+	}
+
+	/**
+	 * Perceptual hash of the 32x32 gray scale image in the luma buffer of the context. The luma buffer is changed.
+	 */
+	private long perceptualHash(HashContext context) {
+		perceptualDCT(context);
+		
+		return dctHash(context.dct);
+	}
+
+	/**
+	 * The 8x8 low frequency corner of the DCT of the 32x32 gray scale image in the luma buffer of the context, put in
+	 * the dct buffer. The luma buffer is changed.
+	 */
+	private void perceptualDCT(HashContext context) {
+		float[] imageMatrix = context.luma;
+		for(int index=0;index<PHASH_SIZE*PHASH_SIZE;index++) {
+			imageMatrix[index] -= 127.5f; //convert to -127 to 127
+		}
+		
+		lowFrequencyDCT(context.dct, imageMatrix, context.partial);
+	}
+
+	/**
+	 * Perceptual hash of the 8x8 low frequency DCT.
+	 */
+	private long dctHash(float[] pixels) {
+		//the dct is the top 8x8 matrix
+		float average = 0;
+		for(int index=1;index<64;index++) {
+			//do not use the first value for the average. It is the average color of the image.
+			average += pixels[index];
+		}
+		average /= 63; //not include the first value
+		
+		return createHash(pixels, average);
+	}
+
+	/**
+	 * use the difference between two pixels to generate the hash.
+	 * 
+	 * @param image
+	 * @return
+	 */
+	public String DifferenceHash(BufferedImage image) {
+		return hashToString(DifferenceHash64(image));
+	}
+
+	/**
+	 * Difference hash as a 64 bit value. See DifferenceHash.
+	 * 
+	 * @param image
+	 * @return
+	 */
+	public long DifferenceHash64(BufferedImage image) {
+		HashContext context = contexts.get();
+		
+		//steps 1 and 2
+		context.downsample(image, 9, 8);
+		
+		return differenceHash(context.luma, context.pixels);
+	}
+
+	/**
+	 * Difference hash of the 9x8 gray scale image.
+	 * 
+	 * @param gray - 9x8 gray scale image
+	 * @param pixels - work buffer of 64 values
+	 */
+	private long differenceHash(float[] gray, float[] pixels) {
+		int index = 0;
+		for(int j=0;j<8;j++) {
+			for(int i=0;i<8;i++) {
+				//Difference with the next value in the row
+				pixels[index] = gray[j*9+i] - gray[j*9+i+1];
+				index++;
+			}
+		}
+
+		return createHash(pixels, 0.0f);
+	}
+
+	private void showMatrix(float[][] dctMatrix) {
+		for(int j=0;j<dctMatrix.length;j++) {
+			for(int i=0;i<dctMatrix[j].length;i++) {
+				System.out.print("" + ((int)dctMatrix[j][i]) + ", ");
+			}
+			System.out.println("");
+		}
+		
+	}
+
+	/**
+	 * 2D DCT of the matrix.
+	 * The DCT is separable so it is done as a DCT of the rows and then a DCT of the columns. The cosines come from a table,
+	 * the 32x32 one is kept, other sizes are worked out once for each call.
+	 * @param DCTMatrix
+	 * @param Matrix
+	 */
+	public void DCT(float[][] DCTMatrix, float[][] Matrix) {
+		int rows = Matrix.length;
+		int columns = Matrix[0].length;
+		
+		separableDCT(DCTMatrix, Matrix, cosineTable(rows), cosineTable(columns), rows, columns);
+	}
+
+	/**
+	 * DCT of the 32x32 matrix that only computes the 8x8 low frequency corner used by the perceptual hash.
+	 * Same as separableDCT but on the flat buffers of the hash context.
+	 * @param DCTMatrix - 8x8 output, row by row
+	 * @param Matrix - 32x32 input, row by row
+	 * @param partial - at least 8x32 work buffer
+	 */
+	private void lowFrequencyDCT(float[] DCTMatrix, float[] Matrix, float[] partial) {
+		for(int u=0;u<PHASH_LOW_SIZE;u++) {
+			float[] cosU = PHASH_COS_TABLE[u];
+			int partialU = u*PHASH_SIZE;
+			for(int j=0;j<PHASH_SIZE;j++) {
+				partial[partialU+j] = 0;
+			}
+			for(int i=0;i<PHASH_SIZE;i++) {
+				float c = cosU[i];
+				int row = i*PHASH_SIZE;
+				for(int j=0;j<PHASH_SIZE;j++) {
+					partial[partialU+j] += Matrix[row+j]*c;
+				}
+			}
+		}
+		
+		for(int u=0;u<PHASH_LOW_SIZE;u++) {
+			int partialU = u*PHASH_SIZE;
+			for(int v=0;v<PHASH_LOW_SIZE;v++) {
+				float[] cosV = PHASH_COS_TABLE[v];
+				float sum = 0;
+				for(int j=0;j<PHASH_SIZE;j++) {
+					sum += partial[partialU+j]*cosV[j];
+				}
+				DCTMatrix[u*PHASH_LOW_SIZE+v] = sum;
+			}
+		}
+	}
+
+	/**
+	 * separableDCT
+	 * 
+	 * DCTMatrix[u][v] = sum over i,j of Matrix[i][j] * cos(PI/rows*(i+0.5)*u) * cos(PI/columns*(j+0.5)*v)
+	 * First each column is transformed for the u frequencies wanted, then each of those rows is transformed for the v frequencies.
+	 * 
+	 * @param DCTMatrix - output, at least numU x numV
+	 * @param Matrix - input
+	 * @param rowCos - cosine table for the rows. rowCos[u][i]
+	 * @param columnCos - cosine table for the columns. columnCos[v][j]
+	 * @param numU - number of u frequencies to compute
+	 * @param numV - number of v frequencies to compute
+	 */
+	private void separableDCT(float[][] DCTMatrix, float[][] Matrix, float[][] rowCos, float[][] columnCos, int numU, int numV) {
+		int rows = Matrix.length;
+		int columns = Matrix[0].length;
+		
+		float[][] partial = new float[numU][columns];
+		for(int u=0;u<numU;u++) {
+			float[] cosU = rowCos[u];
+			float[] partialU = partial[u];
+			for(int i=0;i<rows;i++) {
+				float c = cosU[i];
+				float[] row = Matrix[i];
+				for(int j=0;j<columns;j++) {
+					partialU[j] += row[j]*c;
+				}
+			}
+		}
+		
+		for(int u=0;u<numU;u++) {
+			float[] partialU = partial[u];
+			for(int v=0;v<numV;v++) {
+				float[] cosV = columnCos[v];
+				float sum = 0;
+				for(int j=0;j<columns;j++) {
+					sum += partialU[j]*cosV[j];
+				}
+				DCTMatrix[u][v] = sum;
+			}
+		}
+	}
+
+	/**
+	 * cosineTable
+	 * 
+	 * table[u][i] = cos(PI/size*(i+0.5)*u)
+	 * @param size - size of the DCT
+	 * @param numFrequencies - number of frequencies u
+	 * @return
+	 */
+	private static float[][] cosineTable(int size, int numFrequencies) {
+		float[][] table = new float[numFrequencies][size];
+		for(int u=0;u<numFrequencies;u++) {
+			for(int i=0;i<size;i++) {
+				table[u][i] = (float)Math.cos((Math.PI/size)*(i+0.5)*u);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Full cosine table for a DCT of the size. The table for the perceptual hash size is shared.
+	 */
+	private static float[][] cosineTable(int size) {
+		return (size==PHASH_SIZE) ? PHASH_COS_TABLE : cosineTable(size, size);
+	}
+
+	/**
+	 * Giving the DCT Matrix it will do the inverse DCT
+	 * @param Matrix
+	 * @param DCTMatrix
+	 */
+	public void InverseDCT(float[][] Matrix, float[][] DCTMatrix){
+		int N = DCTMatrix[0].length;
+		int M = DCTMatrix.length;
+		//cosN[i][u] = cos(PI/N*(u+0.5)*i)
+		float[][] cosN = cosineTable(N);
+		float[][] cosM = cosineTable(M);
+	    for (int u = 0; u < N; ++u) {
+	        for (int v = 0; v < M; ++v) {
+//	          Matrix[u][v] = 1.0f/4.0f*DCTMatrix[0][0];
+		          Matrix[u][v] = 0.25f*DCTMatrix[0][0];
+	          for(int i = 1; i < N; i++){
+	        	  Matrix[u][v] += 0.5f*DCTMatrix[i][0];
+	          }
+	          for(int j = 1; j < M; j++){
+	        	  Matrix[u][v] += 0.5f*DCTMatrix[0][j];
+	          }
+
+	          for (int i = 1; i < N; i++) {
+	        	  float cosU = cosN[i][u];
+	        	  for (int j = 1; j < M; j++) {
+	        		  Matrix[u][v] += DCTMatrix[i][j] * cosU * cosM[j][v];
+	              }               
+	          }
+	          Matrix[u][v] *= 2.0f/((float)N)*2.0f/((float)M);
+	        }
+	    }  
+	 }
+
+	/**
+	 * Turns each value into a bit. Bits are set from left to right so the first value is the highest bit.
+	 * 
+	 * @param pixels
+	 * @param average - values below the average are 0, the rest are 1.
+	 * @return
+	 */
+	private long createHash(float[] pixels, float average) {
+		long hash = 0;
+		
+		for(int i=0;i<64;i++) {
+			hash <<= 1;
+			if(pixels[i]>=average) {
+				hash |= 1;
+			}
+		}
+		
+		return hash;
+	}
+
+	/**
+	 * Converts the 64 bit hash to the 16 digit hex string.
+	 * 
+	 * @param hash
+	 * @return
+	 */
+	public static String hashToString(long hash) {
+		String hex = Long.toHexString(hash);
+		
+		if(hex.length()<16) {
+			hex = "0000000000000000".substring(hex.length()) + hex;
+		}
+		return hex;
+	}
+
+	/**
+	 * Hamming distance between two hashes.
+	 * 
+	 * @param hash1
+	 * @param hash2
+	 * @return
+	 */
+	public int distanceBetweenHash(long hash1, long hash2) {
+		return Long.bitCount(hash1^hash2);
+	}
+
+	/**
+	 * Hamming distance between two hex hash strings.
+	 * 
+	 * @param hash1
+	 * @param hash2
+	 * @return
+	 */
+	public int distanceBetweenHash(String hash1, String hash2) {
+		int diff = 0;
+		
+		for(int i=0;i<hash1.length();i++) {
+			int d1 = hexToInt(hash1.charAt(i));
+			int d2 = hexToInt(hash2.charAt(i));
+			
+			//find difference between hashs
+			diff += Integer.bitCount(d1^d2);
+		}
+		
+		return diff;
+	}
+	
+	private int hexToInt(char c) {
+		if(c>='0' && c<='9') return (c-'0');
+		if(c>='a' && c<='f') return (c-'a')+10;
+		if(c>='A' && c<='F') return (c-'A')+10;
+		
+		return 0;
+	}
+
+	/**
+	 * Scale the image.
+	 * I could have the scale operation change to gray scale but I would rather do it as a 
+	 * Separate step so I can control the grayscale conversion
+	 * The hashes now scale straight from the raster in HashContext. This is kept so the benchmarks can compare the two.
+	 * @param image
+	 * @param newWidth
+	 * @param newHeight
+	 * @return
+	 */
+	public BufferedImage scaleImage(BufferedImage image, int newWidth, int newHeight) {
+		BufferedImage output = new BufferedImage(newWidth,  newHeight,  BufferedImage.TYPE_4BYTE_ABGR);
+		
+		Graphics2D g2d = (Graphics2D)output.getGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		
+		g2d.drawImage(image, 0, 0, newWidth, newHeight, 0, 0, image.getWidth(), image.getHeight(), null);
+		g2d.dispose();
+		
+		return output;
+	}
 }
\ No newline at end of file
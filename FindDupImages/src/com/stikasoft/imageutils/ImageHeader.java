@@ -0,0 +1,329 @@
+package com.stikasoft.imageutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+
+/***
+ * ImageHeader
+ *
+ * The format, size and EXIF orientation of an image, read from the headers at the start of the file. The image is not decoded.
+ * The format comes from the magic bytes the file starts with, not its extension, so images with the wrong extension or none are found
+ * and files with an image extension that are not images are not. JPEG, PNG, GIF, BMP, WebP and TIFF are known.
+ *
+ * Only the first HEADER_SIZE bytes are read for most images. The size of a JPEG is in the frame header after the EXIF and other blocks,
+ * blocks past the start are skipped by reading just their marker and length. TIFF files can keep their first directory anywhere in the file,
+ * only the directory is read.
+ *
+ * The width and height are of the image as it is stored. The orientation is the EXIF orientation tag, 1 to 8. Viewers turn images
+ * with 5 to 8 on their side, the hashes are made from the image as it is stored.
+ *
+ * @author Carl Stika
+ *
+ */
+public class ImageHeader {
+
+	//Format names, the same as the ImageIO format names
+	public static final String JPEG = "jpeg";
+	public static final String PNG = "png";
+	public static final String GIF = "gif";
+	public static final String BMP = "bmp";
+	public static final String WEBP = "webp";
+	public static final String TIFF = "tiff";
+
+	//Bytes read from the start of the file
+	private static final int HEADER_SIZE = 4096;
+	//The magic bytes of every format, and the size of the BMP header after them, are in this
+	private static final int MAGIC_SIZE = 32;
+	private static final int MAX_DIRECTORY_ENTRIES = 1000;
+	//TIFF tags
+	private static final int TAG_WIDTH = 0x100;
+	private static final int TAG_HEIGHT = 0x101;
+	private static final int TAG_ORIENTATION = 0x112;
+	private static final int TYPE_SHORT = 3;
+
+	private static final Map<String, String> EXTENSION_FORMATS = Map.of("jpg", JPEG, "jpeg", JPEG, "jpe", JPEG, "jfif", JPEG,
+			"png", PNG, "gif", GIF, "bmp", BMP, "webp", WEBP, "tif", TIFF, "tiff", TIFF);
+
+	private String format;
+	private int width = 0;
+	private int height = 0;
+	private int orientation = 1;
+
+	private ImageHeader(String format) {
+		this.format = format;
+	}
+
+	/**
+	 *
+	 * @return - one of the format names.
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 *
+	 * @return - EXIF orientation, 1 to 8. 1 if the image does not have one.
+	 */
+	public int getOrientation() {
+		return orientation;
+	}
+
+	/**
+	 * probe
+	 *
+	 * Reads the format and size of the image from its headers.
+	 *
+	 * @param file
+	 * @return - the header, or null if the file could not be read, is not one of the known formats or its header is broken.
+	 */
+	public static ImageHeader probe(Path file) {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer start = read(channel, 0, HEADER_SIZE);
+			String format = format(start);
+			if(format==null) return null;
+
+			ImageHeader header = new ImageHeader(format);
+			switch(format) {
+				case JPEG:
+					header.readJpeg(channel, start);
+					break;
+				case PNG:
+					//IHDR is always the first chunk
+					if(start.getInt(12)!=0x49484452) return null;
+					header.width = start.getInt(16);
+					header.height = start.getInt(20);
+					break;
+				case GIF:
+					start.order(ByteOrder.LITTLE_ENDIAN);
+					header.width = start.getShort(6)&0xFFFF;
+					header.height = start.getShort(8)&0xFFFF;
+					break;
+				case BMP:
+					start.order(ByteOrder.LITTLE_ENDIAN);
+					if(start.getInt(14)==12) {
+						header.width = start.getShort(18)&0xFFFF;
+						header.height = start.getShort(20)&0xFFFF;
+					}
+					else {
+						//negative for images stored top to bottom
+						header.width = start.getInt(18);
+						header.height = Math.abs(start.getInt(22));
+					}
+					break;
+				case WEBP:
+					header.readWebP(start);
+					break;
+				default:
+					header.readTiff(channel, start);
+					break;
+			}
+
+			return (header.width>0 && header.height>0) ? header : null;
+		} catch (IOException | RuntimeException e) {
+			//Headers that are cut short or point outside the file throw index exceptions.
+			return null;
+		}
+	}
+
+	/**
+	 * sniffFormat
+	 *
+	 * Reads only the magic bytes at the start of the file.
+	 *
+	 * @param file
+	 * @return - one of the format names, or null if the file could not be read or is not one of the known formats.
+	 */
+	public static String sniffFormat(Path file) {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return format(read(channel, 0, MAGIC_SIZE));
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * isProbedExtension
+	 *
+	 * @param file
+	 * @return - true if the file extension is one of the formats probe knows, so a file with it that probe can not read is not an image.
+	 */
+	public static boolean isProbedExtension(Path file) {
+		String fileName = file.getFileName().toString();
+		int dot = fileName.lastIndexOf('.');
+		return dot>0 && EXTENSION_FORMATS.containsKey(fileName.substring(dot+1).toLowerCase(Locale.ROOT));
+	}
+
+	private static String format(ByteBuffer start) {
+		int length = start.limit();
+		if(length<MAGIC_SIZE) return null;
+
+		int first = start.getInt(0);
+		if((first>>>8)==0xFFD8FF) return JPEG;
+		if(first==0x89504E47 && start.getInt(4)==0x0D0A1A0A) return PNG;
+		if(first==0x47494638 && (start.getShort(4)==0x3761 || start.getShort(4)==0x3961)) return GIF;
+		if(first==0x49492A00 || first==0x4D4D002A) return TIFF;
+		if(first==0x52494646 && start.getInt(8)==0x57454250) return WEBP;
+		if((first>>>16)==0x424D) {
+			//Only two magic bytes, so the size of the header after them has to be one of the BMP header sizes too
+			int infoSize = Integer.reverseBytes(start.getInt(14));
+			if(infoSize==12 || infoSize==40 || infoSize==52 || infoSize==56 || infoSize==64 || infoSize==108 || infoSize==124) return BMP;
+		}
+		return null;
+	}
+
+	/**
+	 * readJpeg
+	 *
+	 * Walks the blocks up to the frame header, which has the size. The orientation is in the EXIF block, if there is one.
+	 */
+	private void readJpeg(FileChannel channel, ByteBuffer start) throws IOException {
+		long position = 2;
+		while(true) {
+			ByteBuffer block = bytes(channel, start, position, 4);
+			int marker = block.getShort(0)&0xFFFF;
+			if(marker==0xFFFF) {
+				//fill byte
+				position++;
+				continue;
+			}
+			int length = block.getShort(2)&0xFFFF;
+			//No frame header before the image data
+			if((marker&0xFF00)!=0xFF00 || marker==0xFFDA || marker==0xFFD9 || length<2) return;
+
+			//SOF0 to SOF15, C4, C8 and CC are other blocks
+			if(marker>=0xFFC0 && marker<=0xFFCF && marker!=0xFFC4 && marker!=0xFFC8 && marker!=0xFFCC) {
+				ByteBuffer frame = bytes(channel, start, position+4, 5);
+				height = frame.getShort(1)&0xFFFF;
+				width = frame.getShort(3)&0xFFFF;
+				return;
+			}
+			if(marker==0xFFE1 && length>8) {
+				readExifOrientation(bytes(channel, start, position+4, Math.min(length-2, HEADER_SIZE)));
+			}
+			position += 2+length;
+		}
+	}
+
+	/**
+	 * The EXIF block is "Exif\0\0" then TIFF data. Bad EXIF data is skipped, the image still has a size.
+	 */
+	private void readExifOrientation(ByteBuffer exif) {
+		if(exif.limit()<14 || exif.getInt(0)!=0x45786966 || exif.getShort(4)!=0) return;
+
+		try {
+			ByteBuffer tiff = exif.position(6).slice();
+			tiff.order((tiff.get(0)=='I') ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+			int[] tags = readDirectory(tiff.position(tiff.getInt(4)).slice().order(tiff.order()));
+			orientation = tags[2];
+		}
+		catch(IndexOutOfBoundsException | IllegalArgumentException e) {
+			//bad EXIF data
+		}
+	}
+
+	private void readWebP(ByteBuffer start) {
+		start.order(ByteOrder.LITTLE_ENDIAN);
+		switch(start.getInt(12)) {
+			case 0x20385056:
+				//"VP8 " lossy, the key frame header has a start code then 14 bit sizes
+				if((start.getInt(23)&0xFFFFFF)!=0x2A019D) return;
+				width = start.getShort(26)&0x3FFF;
+				height = start.getShort(28)&0x3FFF;
+				break;
+			case 0x4C385056:
+				//"VP8L" lossless, a signature byte then the sizes less one in 14 bits each
+				if(start.get(20)!=0x2F) return;
+				int sizes = start.getInt(21);
+				width = (sizes&0x3FFF)+1;
+				height = ((sizes>>>14)&0x3FFF)+1;
+				break;
+			case 0x58385056:
+				//"VP8X" extended, the canvas sizes less one in 24 bits each
+				width = (start.getInt(24)&0xFFFFFF)+1;
+				height = (start.getInt(27)&0xFFFFFF)+1;
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void readTiff(FileChannel channel, ByteBuffer start) throws IOException {
+		ByteOrder order = (start.get(0)=='I') ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		long directory = start.order(order).getInt(4)&0xFFFFFFFFL;
+
+		int numEntries = bytes(channel, start, directory, 2).order(order).getShort(0)&0xFFFF;
+		if(numEntries>MAX_DIRECTORY_ENTRIES) return;
+		int[] tags = readDirectory(bytes(channel, start, directory, 2+12*numEntries).order(order));
+		width = tags[0];
+		height = tags[1];
+		orientation = tags[2];
+	}
+
+	/**
+	 * readDirectory
+	 *
+	 * Reads the size and orientation tags of a TIFF image file directory. Their values fit in the directory entries so nothing else is read.
+	 *
+	 * @param directory - starts with the number of entries, in the byte order of the TIFF data.
+	 * @return - width, height and orientation. 0, 0 and 1 when they are not there.
+	 */
+	private static int[] readDirectory(ByteBuffer directory) {
+		int[] tags = {0, 0, 1};
+		int numEntries = directory.getShort(0)&0xFFFF;
+		for(int i=0;i<numEntries;i++) {
+			int entry = 2 + 12*i;
+			int tag = directory.getShort(entry)&0xFFFF;
+			int value = ((directory.getShort(entry+2)&0xFFFF)==TYPE_SHORT) ? directory.getShort(entry+8)&0xFFFF : directory.getInt(entry+8);
+			if(tag==TAG_WIDTH) tags[0] = value;
+			if(tag==TAG_HEIGHT) tags[1] = value;
+			if(tag==TAG_ORIENTATION && value>=1 && value<=8) tags[2] = value;
+		}
+		return tags;
+	}
+
+	/**
+	 * bytes
+	 *
+	 * The bytes at the position in the file, from the start already read if they are in it.
+	 *
+	 * @return - big endian buffer of the bytes.
+	 * @throws IOException - also if the file ends before them.
+	 */
+	private static ByteBuffer bytes(FileChannel channel, ByteBuffer start, long position, int size) throws IOException {
+		if(position+size<=start.limit()) {
+			return start.duplicate().position((int)position).limit((int)position+size).slice();
+		}
+
+		ByteBuffer buffer = read(channel, position, size);
+		if(buffer.limit()<size) {
+			throw new IOException("header is past the end of the file");
+		}
+		return buffer;
+	}
+
+	/**
+	 * Reads up to size bytes, less if the file ends first.
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position+buffer.position())<0) break;
+		}
+		return buffer.flip();
+	}
+}
@@ -1,129 +1,409 @@
-package com.stikasoft.imageutils;
-
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-
-import javax.imageio.ImageIO;
-
-/**
- * Imageutils
- * 
- * Utility class I created to help with some simple image loading and saving.
- *  
- * @author Carl Stika
- *
- */
-public class ImageUtils {
-	
-	
-	public static boolean savePngImage(BufferedImage image, String imageName) {
-		boolean result = false;
-		
-		try {
-			File imageFile = new File(imageName);
-			result = ImageIO.write(image, "png", imageFile);
-		} catch (IOException e) {
-			System.out.println("Could not save image file " + imageName);
-		}
-		
-		return result;
-	}
-
-	public static BufferedImage loadImage(String imageName) {
-		BufferedImage result = null;
-		
-		File imageFile = new File(imageName);
-		if(imageFile.exists()) {
-			try {
-				result = ImageIO.read(imageFile);
-			} catch (IOException e) {
-				System.out.println("Could not load image file " + imageName);
-			}
-		}
-		else {
-			System.out.println("File " + imageName + " does not exist");
-		}
-
-		return result;
-	}
-
-	public static BufferedImage loadImageFromResource(String imageName) {
-		BufferedImage result = null;
-		
-		URL imageURL = ImageUtils.class.getClassLoader().getResource(imageName);
-		if(imageURL!=null) {
-			File imageFile = new File(imageURL.getFile());
-			if(imageFile.exists()) {
-				try {
-					result = ImageIO.read(imageFile);
-				} catch (IOException e) {
-					System.out.println("Could not load image file " + imageName);
-				}
-			}
-			else {
-				System.out.println("File " + imageName + " does not exist");
-			}
-		}
-		else {
-			System.out.println("Could not find file " + imageName + " in resource");
-		}
-		
-		return result;
-	}
-	
-	public static byte[] loadBinaryFile(String fileName) {
-		byte[] result = null;
-		
-		URL fileURL = ImageUtils.class.getClassLoader().getResource(fileName);
-		if(fileURL!=null) {
-			Path path;
-			try {
-				path = Paths.get(fileURL.toURI());
-				result = Files.readAllBytes(path);
-			} 
-			catch (URISyntaxException e) {
-				System.out.println("File " + fileName + " error : " + e.getMessage());
-			} 
-			catch (IOException e) {
-				System.out.println("File " + fileName + " error : " + e.getMessage());
-			}
-		}
-		else {
-			System.out.println("Could not find file " + fileName + " in resource");
-		}
-		
-		return result;
-	}
-
-	public static List<String> loadTextFile(String fileName) {
-		List<String> result = new ArrayList<>();
-		
-		URL fileURL = ImageUtils.class.getClassLoader().getResource(fileName);
-		if(fileURL!=null) {
-			Path path;
-			try {
-				path = Paths.get(fileURL.toURI());
-				result = Files.readAllLines(path);
-			} 
-			catch (URISyntaxException e) {
-				System.out.println("File " + fileName + " error : " + e.getMessage());
-			} 
-			catch (IOException e) {
-				System.out.println("File " + fileName + " error : " + e.getMessage());
-			}
-		}
-		else {
-			System.out.println("Could not find file " + fileName + " in resource");
-		}
-		
-		return result;
-	}
-}
+package com.stikasoft.imageutils;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Imageutils
+ * 
+ * Utility class I created to help with some simple image loading and saving.
+ *  
+ * @author Carl Stika
+ *
+ */
+public class ImageUtils {
+	
+	
+	public static boolean savePngImage(BufferedImage image, String imageName) {
+		boolean result = false;
+		
+		try {
+			File imageFile = new File(imageName);
+			result = ImageIO.write(image, "png", imageFile);
+		} catch (IOException e) {
+			System.out.println("Could not save image file " + imageName);
+		}
+		
+		return result;
+	}
+
+	public static BufferedImage loadImage(String imageName) {
+		BufferedImage result = null;
+		
+		File imageFile = new File(imageName);
+		if(imageFile.exists()) {
+			try {
+				result = ImageIO.read(imageFile);
+			} catch (IOException e) {
+				System.out.println("Could not load image file " + imageName);
+			}
+		}
+		else {
+			System.out.println("File " + imageName + " does not exist");
+		}
+
+		return result;
+	}
+
+	/**
+	 * loadImageForHash
+	 * 
+	 * Loads the image at a lower resolution for hashing. The reader is asked to only decode every n'th pixel 
+	 * so the smaller side of the image is still at least minSize pixels. This is a lot less work and memory than decoding 
+	 * the full image and then throwing most of it away when it is scaled to the hash size.
+	 * 
+	 * If useThumbnail is set and the image has an embedded thumbnail (JFIF or EXIF) that is at least minThumbnailSize 
+	 * and has the same shape as the image, the thumbnail is used and the image is not decoded at all.
+	 * 
+	 * @param imageName
+	 * @param minSize - smallest size of the short side of the loaded image.
+	 * @param useThumbnail - use an embedded thumbnail if there is a good one.
+	 * @param minThumbnailSize - smallest size of the short side of a thumbnail that can be used.
+	 * @return - the image or null if it could not be loaded.
+	 */
+	public static BufferedImage loadImageForHash(String imageName, int minSize, boolean useThumbnail, int minThumbnailSize) {
+		BufferedImage result = null;
+		
+		File imageFile = new File(imageName);
+		if(!imageFile.exists()) {
+			System.out.println("File " + imageName + " does not exist");
+			return null;
+		}
+		
+		try(ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+			Iterator<ImageReader> readers = (input!=null) ? ImageIO.getImageReaders(input) : null;
+			
+			if(readers!=null && readers.hasNext()) {
+				ImageReader reader = readers.next();
+				try {
+					reader.setInput(input, true, true);
+					int width = reader.getWidth(0);
+					int height = reader.getHeight(0);
+					
+					if(useThumbnail) {
+						result = loadThumbnail(imageFile, reader, width, height, minThumbnailSize);
+					}
+					
+					if(result==null) {
+						result = readSubsampled(reader, width, height, minSize);
+					}
+				}
+				finally {
+					reader.dispose();
+				}
+			}
+			else {
+				System.out.println("Could not load image file " + imageName);
+			}
+		} catch (IOException | RuntimeException e) {
+			//Some of the image readers throw runtime exceptions on bad files.
+			System.out.println("Could not load image file " + imageName);
+		}
+		
+		return result;
+	}
+
+	/**
+	 * loadImageForHash
+	 * 
+	 * Loads an image that is in memory at a lower resolution for hashing. The same as loading a file but embedded thumbnails are not used.
+	 * 
+	 * @param imageData - contents of an image file.
+	 * @param minSize - smallest size of the short side of the loaded image.
+	 * @return - the image or null if it is not an image that can be read.
+	 */
+	public static BufferedImage loadImageForHash(byte[] imageData, int minSize) {
+		BufferedImage result = null;
+		
+		try(ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData))) {
+			Iterator<ImageReader> readers = (input!=null) ? ImageIO.getImageReaders(input) : null;
+			
+			if(readers!=null && readers.hasNext()) {
+				ImageReader reader = readers.next();
+				try {
+					reader.setInput(input, true, true);
+					result = readSubsampled(reader, reader.getWidth(0), reader.getHeight(0), minSize);
+				}
+				finally {
+					reader.dispose();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			//Some of the image readers throw runtime exceptions on bad files.
+			result = null;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * readImageSize
+	 * 
+	 * Reads the width and height of the image from its header. The image is not decoded.
+	 * The formats ImageHeader knows are read by it, only the start of the file is read. Other formats use their ImageIO reader.
+	 * 
+	 * @param imageName
+	 * @return - the size, or null if the image could not be read.
+	 */
+	public static Dimension readImageSize(String imageName) {
+		ImageHeader header = ImageHeader.probe(Paths.get(imageName));
+		if(header!=null) {
+			return new Dimension(header.getWidth(), header.getHeight());
+		}
+		
+		try(ImageInputStream input = ImageIO.createImageInputStream(new File(imageName))) {
+			Iterator<ImageReader> readers = (input!=null) ? ImageIO.getImageReaders(input) : null;
+			
+			if(readers!=null && readers.hasNext()) {
+				ImageReader reader = readers.next();
+				try {
+					reader.setInput(input, true, true);
+					return new Dimension(reader.getWidth(0), reader.getHeight(0));
+				}
+				finally {
+					reader.dispose();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			//Some of the image readers throw runtime exceptions on bad files.
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * readImagePixels
+	 * 
+	 * @param imageName
+	 * @return - width times height from the header of the image, or -1 if the image could not be read.
+	 */
+	public static long readImagePixels(String imageName) {
+		Dimension size = readImageSize(imageName);
+		return (size!=null) ? (long)size.width*size.height : -1;
+	}
+	
+	/**
+	 * Reads every n'th pixel of the image so the smaller side is still at least minSize pixels.
+	 */
+	private static BufferedImage readSubsampled(ImageReader reader, int width, int height, int minSize) throws IOException {
+		int subsampling = Math.max(1, Math.min(width, height)/minSize);
+		
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+		return reader.read(0, param);
+	}
+
+	/**
+	 * loadThumbnail
+	 * 
+	 * Finds the largest embedded thumbnail that is big enough and has the same shape as the image.
+	 * 
+	 * @param imageFile
+	 * @param reader - reader with the image as the input
+	 * @param width - width of the image
+	 * @param height - height of the image
+	 * @param minThumbnailSize
+	 * @return - the thumbnail or null if there is not a good one.
+	 * @throws IOException
+	 */
+	private static BufferedImage loadThumbnail(File imageFile, ImageReader reader, int width, int height, int minThumbnailSize) throws IOException {
+		BufferedImage result = null;
+		
+		if(reader.readerSupportsThumbnails()) {
+			try {
+				for(int i=0;i<reader.getNumThumbnails(0);i++) {
+					int thumbnailWidth = reader.getThumbnailWidth(0, i);
+					int thumbnailHeight = reader.getThumbnailHeight(0, i);
+					
+					if(isGoodThumbnail(thumbnailWidth, thumbnailHeight, width, height, minThumbnailSize)
+							&& (result==null || thumbnailWidth>result.getWidth())) {
+						result = reader.readThumbnail(0, i);
+					}
+				}
+			}
+			catch(IOException | RuntimeException e) {
+				//The JPEG reader will not read the metadata of files with the EXIF block before the JFIF block, and throws
+				//runtime exceptions like CMMException on a corrupt thumbnail. The image itself still loads.
+				result = null;
+			}
+		}
+		
+		if(result==null && reader.getFormatName().equalsIgnoreCase("jpeg")) {
+			BufferedImage exifThumbnail = loadExifThumbnail(imageFile);
+			if(exifThumbnail!=null && isGoodThumbnail(exifThumbnail.getWidth(), exifThumbnail.getHeight(), width, height, minThumbnailSize)) {
+				result = exifThumbnail;
+			}
+		}
+		
+		return result;
+	}
+	
+	private static boolean isGoodThumbnail(int thumbnailWidth, int thumbnailHeight, int width, int height, int minThumbnailSize) {
+		if(Math.min(thumbnailWidth, thumbnailHeight)<minThumbnailSize) return false;
+		
+		//Some cameras add black bars to make the thumbnail 4:3. Those would hash differently.
+		float imageAspect = (float)width/height;
+		float thumbnailAspect = (float)thumbnailWidth/thumbnailHeight;
+		return Math.abs(imageAspect-thumbnailAspect)<=0.02f*imageAspect;
+	}
+	
+	/**
+	 * loadExifThumbnail
+	 * 
+	 * Reads the JPEG thumbnail from the EXIF block of a JPEG file. Only the start of the file is read.
+	 * The thumbnail offset and length are in the second IFD of the EXIF data (tags 0x201 and 0x202).
+	 * 
+	 * A file that ends early or a thumbnail that can not be read gives null, the image itself can still be loaded.
+	 * 
+	 * @param imageFile
+	 * @return - thumbnail or null if there is no good EXIF thumbnail.
+	 */
+	private static BufferedImage loadExifThumbnail(File imageFile) {
+		byte[] exif = null;
+		
+		try(RandomAccessFile file = new RandomAccessFile(imageFile, "r")) {
+			if(file.readUnsignedShort()!=0xFFD8) return null;
+			
+			//Find the APP1 Exif segment. It is at the start of the file before the image data.
+			while(exif==null) {
+				int marker = file.readUnsignedShort();
+				int length = file.readUnsignedShort();
+				if((marker&0xFF00)!=0xFF00 || marker==0xFFDA || length<2) return null;
+				
+				if(marker==0xFFE1 && length>8) {
+					byte[] segment = new byte[length-2];
+					file.readFully(segment);
+					if(segment[0]=='E' && segment[1]=='x' && segment[2]=='i' && segment[3]=='f' && segment[4]==0) {
+						exif = segment;
+					}
+				}
+				else {
+					file.seek(file.getFilePointer()+length-2);
+				}
+			}
+		}
+		catch(IOException e) {
+			//the file ends before the image data
+			return null;
+		}
+		
+		//TIFF header starts after "Exif\0\0"
+		ByteBuffer tiff = ByteBuffer.wrap(exif, 6, exif.length-6).slice();
+		tiff.order((tiff.get(0)=='I') ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		
+		try {
+			int ifd0 = tiff.getInt(4);
+			int ifd1 = tiff.getInt(ifd0 + 2 + 12*(tiff.getShort(ifd0)&0xFFFF));
+			if(ifd1==0) return null;
+			
+			int thumbnailOffset = 0;
+			int thumbnailLength = 0;
+			int numEntries = tiff.getShort(ifd1)&0xFFFF;
+			for(int i=0;i<numEntries;i++) {
+				int entry = ifd1 + 2 + 12*i;
+				int tag = tiff.getShort(entry)&0xFFFF;
+				if(tag==0x201) thumbnailOffset = tiff.getInt(entry+8);
+				if(tag==0x202) thumbnailLength = tiff.getInt(entry+8);
+			}
+			
+			if(thumbnailOffset<=0 || thumbnailLength<=0 || thumbnailOffset+thumbnailLength>tiff.limit()) return null;
+			
+			return ImageIO.read(new ByteArrayInputStream(exif, 6+thumbnailOffset, thumbnailLength));
+		}
+		catch(IOException | RuntimeException e) {
+			//bad EXIF data or a broken thumbnail, the JPEG reader throws runtime exceptions on some
+			return null;
+		}
+	}
+
+	public static BufferedImage loadImageFromResource(String imageName) {
+		BufferedImage result = null;
+		
+		URL imageURL = ImageUtils.class.getClassLoader().getResource(imageName);
+		if(imageURL!=null) {
+			File imageFile = new File(imageURL.getFile());
+			if(imageFile.exists()) {
+				try {
+					result = ImageIO.read(imageFile);
+				} catch (IOException e) {
+					System.out.println("Could not load image file " + imageName);
+				}
+			}
+			else {
+				System.out.println("File " + imageName + " does not exist");
+			}
+		}
+		else {
+			System.out.println("Could not find file " + imageName + " in resource");
+		}
+		
+		return result;
+	}
+	
+	public static byte[] loadBinaryFile(String fileName) {
+		byte[] result = null;
+		
+		URL fileURL = ImageUtils.class.getClassLoader().getResource(fileName);
+		if(fileURL!=null) {
+			Path path;
+			try {
+				path = Paths.get(fileURL.toURI());
+				result = Files.readAllBytes(path);
+			} 
+			catch (URISyntaxException e) {
+				System.out.println("File " + fileName + " error : " + e.getMessage());
+			} 
+			catch (IOException e) {
+				System.out.println("File " + fileName + " error : " + e.getMessage());
+			}
+		}
+		else {
+			System.out.println("Could not find file " + fileName + " in resource");
+		}
+		
+		return result;
+	}
+
+	public static List<String> loadTextFile(String fileName) {
+		List<String> result = new ArrayList<>();
+		
+		URL fileURL = ImageUtils.class.getClassLoader().getResource(fileName);
+		if(fileURL!=null) {
+			Path path;
+			try {
+				path = Paths.get(fileURL.toURI());
+				result = Files.readAllLines(path);
+			} 
+			catch (URISyntaxException e) {
+				System.out.println("File " + fileName + " error : " + e.getMessage());
+			} 
+			catch (IOException e) {
+				System.out.println("File " + fileName + " error : " + e.getMessage());
+			}
+		}
+		else {
+			System.out.println("Could not find file " + fileName + " in resource");
+		}
+		
+		return result;
+	}
+}
@@ -0,0 +1,534 @@
+package com.stikasoft.imageutils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/***
+ * MappedHashIndex
+ *
+ * Read only index of image hashes in a file that is memory mapped. Nothing is read into the heap when the index is opened,
+ * the operating system pages in the parts that are used. Opening an index with millions of images takes the same time as
+ * opening a small one.
+ *
+ * Records are looked up by number. A record can be found by its path or by searching for hashes close to a hash.
+ *
+ * File format, all values big endian :
+ *   header  : int magic, int version, int count, int algorithm, int numBands, int numHashes
+ *   records : count times : numHashes longs, long size, long modified, long pathOffset. Sorted by path.
+ *   bands   : numBands times : count ints, the record numbers sorted by the band of the hash.
+ *   paths   : count times : int length, UTF-8 bytes.
+ *
+ * Version 1 files have no numHashes, they have one hash in each record. The first hash of a record is the one that is
+ * searched, the others are only read. See ImageHash.hashImageAll.
+ *
+ * The bands work the same way as MultiIndexHash. A hash within distance d of the search hash has at least one of the
+ * 16 bit bands within d/4 bits of the search band, so a search only looks at the records with those band values.
+ *
+ * Each section is mapped as one buffer, and a buffer is at most 2GB, so that is the limit of each section. The paths are the
+ * first to reach it, at about 20 million images with paths of 100 bytes. Writer.write fails for an index past the limit
+ * rather than writing a file that can not be opened.
+ *
+ * The index can be read from many threads.
+ *
+ * @author Carl Stika
+ *
+ */
+public class MappedHashIndex {
+
+	private static final int MAGIC = 0x46444D49; //FDMI
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 24;
+	private static final int VERSION_1_HEADER_SIZE = 20;
+	private static final int NUM_BANDS = 4;
+	private static final int BAND_BITS = 16;
+
+	public static final int NOT_FOUND = -1;
+
+	private int count;
+	private int algorithm;
+	private int numHashes;
+	private int recordSize;
+	private ByteBuffer records;
+	private ByteBuffer[] bands = new ByteBuffer[NUM_BANDS];
+	private ByteBuffer paths;
+
+	private MappedHashIndex() {
+	}
+
+	/**
+	 * open
+	 *
+	 * Maps the index file.
+	 *
+	 * @param indexFile
+	 * @return
+	 * @throws IOException - if the file can not be read or is not an index file.
+	 */
+	public static MappedHashIndex open(Path indexFile) throws IOException {
+		MappedHashIndex index = new MappedHashIndex();
+		
+		//A pending file is newer than the index file. It is moved over it now, before the index file is mapped.
+		Path pending = pendingFile(indexFile);
+		if(Files.exists(pending)) {
+			try {
+				Files.move(pending, indexFile, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				//the index file is mapped by another program
+				indexFile = pending;
+			}
+		}
+
+		try(FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+			ByteBuffer header = map(channel, 0, VERSION_1_HEADER_SIZE);
+			int version = header.getInt(4);
+			if(header.getInt(0)!=MAGIC || (version!=1 && version!=VERSION) || header.getInt(16)!=NUM_BANDS) {
+				throw new IOException("not a hash index file");
+			}
+			index.count = header.getInt(8);
+			index.algorithm = header.getInt(12);
+
+			long offset = VERSION_1_HEADER_SIZE;
+			index.numHashes = 1;
+			if(version==VERSION) {
+				index.numHashes = map(channel, 0, HEADER_SIZE).getInt(20);
+				if(index.numHashes<1) {
+					throw new IOException("not a hash index file");
+				}
+				offset = HEADER_SIZE;
+			}
+			index.recordSize = recordSize(index.numHashes);
+
+			index.records = map(channel, offset, (long)index.count*index.recordSize);
+			offset += (long)index.count*index.recordSize;
+
+			for(int band=0;band<NUM_BANDS;band++) {
+				index.bands[band] = map(channel, offset, (long)index.count*4);
+				offset += (long)index.count*4;
+			}
+
+			index.paths = map(channel, offset, channel.size()-offset);
+		}
+
+		return index;
+	}
+
+	/**
+	 * replace
+	 *
+	 * Moves a newly written index file over the index file. Windows can not replace a file that is mapped, and a mapping is only
+	 * dropped when its buffers are garbage collected, so an index that was opened can not be replaced while the program runs.
+	 * Then the new file is kept as the pending file, and open uses it from then on.
+	 *
+	 * @param newFile - index file written by a Writer.
+	 * @param indexFile
+	 * @return - true if the index file was replaced, false if the new file was kept as the pending file.
+	 * @throws IOException - if the new file could not be moved to either.
+	 */
+	public static boolean replace(Path newFile, Path indexFile) throws IOException {
+		Path pending = pendingFile(indexFile);
+		try {
+			Files.move(newFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.move(newFile, pending, StandardCopyOption.REPLACE_EXISTING);
+			return false;
+		}
+		
+		Files.deleteIfExists(pending);
+		return true;
+	}
+
+	/**
+	 *
+	 * @param indexFile
+	 * @return - the file a new index is kept in when the index file could not be replaced.
+	 */
+	public static Path pendingFile(Path indexFile) {
+		return indexFile.resolveSibling(indexFile.getFileName() + ".new");
+	}
+
+	/**
+	 * exists
+	 *
+	 * @param indexFile
+	 * @return - true if there is an index file or a pending one to open.
+	 */
+	public static boolean exists(Path indexFile) {
+		return Files.exists(indexFile) || Files.exists(pendingFile(indexFile));
+	}
+
+	private static int recordSize(int numHashes) {
+		return numHashes*8 + 24;
+	}
+
+	private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+		if(size>Integer.MAX_VALUE) {
+			throw new IOException("hash index section is too large to map");
+		}
+		if(offset+size>channel.size()) {
+			throw new IOException("hash index file is truncated");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+	}
+
+	/**
+	 *
+	 * @return - number of records in the index.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 *
+	 * @return - id of the hash algorithm the hashes were made with. See ImageHash.
+	 */
+	public int getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 *
+	 * @return - number of hashes in each record.
+	 */
+	public int getNumHashes() {
+		return numHashes;
+	}
+
+	/**
+	 *
+	 * @param record
+	 * @return - the first hash of the record, the one that is searched.
+	 */
+	public long getHash(int record) {
+		return records.getLong(record*recordSize);
+	}
+
+	/**
+	 *
+	 * @param record
+	 * @param hash - which hash, 0 to getNumHashes()-1.
+	 * @return
+	 */
+	public long getHash(int record, int hash) {
+		return records.getLong(record*recordSize+hash*8);
+	}
+
+	/**
+	 *
+	 * @param record
+	 * @return - all the hashes of the record.
+	 */
+	public long[] getHashes(int record) {
+		long[] hashes = new long[numHashes];
+		for(int hash=0;hash<numHashes;hash++) {
+			hashes[hash] = getHash(record, hash);
+		}
+		return hashes;
+	}
+
+	public long getSize(int record) {
+		return records.getLong(record*recordSize+numHashes*8);
+	}
+
+	public long getModified(int record) {
+		return records.getLong(record*recordSize+numHashes*8+8);
+	}
+
+	/**
+	 * getPath
+	 *
+	 * Only call this when the path is needed. It creates a String.
+	 *
+	 * @param record
+	 * @return
+	 */
+	public String getPath(int record) {
+		int pathOffset = (int)records.getLong(record*recordSize+numHashes*8+16);
+		byte[] pathBytes = new byte[paths.getInt(pathOffset)];
+
+		ByteBuffer pathBuffer = paths.duplicate();
+		pathBuffer.position(pathOffset+4);
+		pathBuffer.get(pathBytes);
+
+		return new String(pathBytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * findPath
+	 *
+	 * Binary search of the records for the path. The path bytes are compared in the mapped file so no Strings are made.
+	 *
+	 * @param path
+	 * @return - the record number or NOT_FOUND
+	 */
+	public int findPath(String path) {
+		byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+
+		int low = 0;
+		int high = count-1;
+		while(low<=high) {
+			int middle = (low+high)>>>1;
+			int compare = comparePath(middle, pathBytes);
+
+			if(compare<0) {
+				low = middle+1;
+			}
+			else if(compare>0) {
+				high = middle-1;
+			}
+			else {
+				return middle;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	private int comparePath(int record, byte[] pathBytes) {
+		int pathOffset = (int)records.getLong(record*recordSize+numHashes*8+16);
+		int length = paths.getInt(pathOffset);
+
+		int compareLength = Math.min(length, pathBytes.length);
+		for(int i=0;i<compareLength;i++) {
+			int compare = Integer.compare(paths.get(pathOffset+4+i)&255, pathBytes[i]&255);
+			if(compare!=0) return compare;
+		}
+		return Integer.compare(length, pathBytes.length);
+	}
+
+	/**
+	 * search
+	 *
+	 * Finds all the records whose hash is within maxDistance of the hash. Each record is only passed to found once.
+	 *
+	 * @param hash
+	 * @param maxDistance - largest distance to include.
+	 * @param found - called with the record number of each close hash.
+	 */
+	public void search(long hash, int maxDistance, IntConsumer found) {
+		int bandRadius = maxDistance/NUM_BANDS;
+
+		for(int band=0;band<NUM_BANDS;band++) {
+			probe(hash, maxDistance, bandRadius, bandRadius, band, bandValue(hash, band), 0, found);
+		}
+	}
+
+	/**
+	 * Looks up the band value and then every value made by flipping up to radius more bits.
+	 */
+	private void probe(long hash, int maxDistance, int bandRadius, int radius, int band, int key, int firstBit, IntConsumer found) {
+		ByteBuffer bandRecords = bands[band];
+
+		//find the first record with the band value
+		int low = 0;
+		int high = count;
+		while(low<high) {
+			int middle = (low+high)>>>1;
+			if(bandValue(getHash(bandRecords.getInt(middle*4)), band)<key) {
+				low = middle+1;
+			}
+			else {
+				high = middle;
+			}
+		}
+
+		for(int i=low;i<count;i++) {
+			int record = bandRecords.getInt(i*4);
+			long candidate = getHash(record);
+			if(bandValue(candidate, band)!=key) break;
+
+			if(Long.bitCount(candidate^hash)<=maxDistance && !foundInEarlierBand(candidate, hash, band, bandRadius)) {
+				found.accept(record);
+			}
+		}
+
+		if(radius>0) {
+			for(int bit=firstBit;bit<BAND_BITS;bit++) {
+				probe(hash, maxDistance, bandRadius, radius-1, band, key^(1<<bit), bit+1, found);
+			}
+		}
+	}
+
+	private static boolean foundInEarlierBand(long candidate, long hash, int band, int bandRadius) {
+		for(int earlierBand=0;earlierBand<band;earlierBand++) {
+			if(Integer.bitCount(bandValue(candidate, earlierBand)^bandValue(hash, earlierBand))<=bandRadius) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int bandValue(long hash, int band) {
+		return (int)((hash>>>(64-BAND_BITS*(band+1))) & ((1<<BAND_BITS)-1));
+	}
+
+	/***
+	 * Writer
+	 *
+	 * Collects the records and writes the index file.
+	 */
+	public static class Writer {
+		private int algorithm;
+		private int numHashes;
+		private List<byte[]> paths = new ArrayList<>();
+		//numHashes for each record
+		private long[] hashes;
+		private long[] sizes = new long[1024];
+		private long[] modifieds = new long[1024];
+
+		/**
+		 *
+		 * @param algorithm - id of the hash algorithm of all the hashes. See ImageHash.
+		 * @param numHashes - number of hashes in each record.
+		 */
+		public Writer(int algorithm, int numHashes) {
+			this.algorithm = algorithm;
+			this.numHashes = numHashes;
+			hashes = new long[1024*numHashes];
+		}
+
+		/**
+		 * Adds a record. Each path should only be added once.
+		 *
+		 * @param path
+		 * @param size
+		 * @param modified
+		 * @param recordHashes - numHashes hashes, the first is the one that is searched.
+		 */
+		public void add(String path, long size, long modified, long[] recordHashes) {
+			int record = paths.size();
+			if(record==sizes.length) {
+				hashes = Arrays.copyOf(hashes, record*2*numHashes);
+				sizes = Arrays.copyOf(sizes, record*2);
+				modifieds = Arrays.copyOf(modifieds, record*2);
+			}
+
+			paths.add(path.getBytes(StandardCharsets.UTF_8));
+			System.arraycopy(recordHashes, 0, hashes, record*numHashes, numHashes);
+			sizes[record] = size;
+			modifieds[record] = modified;
+		}
+
+		/**
+		 *
+		 * @return - number of records added.
+		 */
+		public int size() {
+			return paths.size();
+		}
+
+		/**
+		 * write
+		 *
+		 * Sorts the records and writes the index file. The sorts are of int and long arrays, not objects, so they take
+		 * 12 bytes for each record.
+		 *
+		 * @param indexFile
+		 * @throws IOException - also if a section of the index would be over 2GB.
+		 */
+		public void write(Path indexFile) throws IOException {
+			int count = paths.size();
+
+			long pathsSize = 0;
+			for(byte[] pathBytes : paths) {
+				pathsSize += 4+pathBytes.length;
+			}
+			if((long)count*recordSize(numHashes)>Integer.MAX_VALUE || pathsSize>Integer.MAX_VALUE) {
+				throw new IOException("hash index of " + count + " images is over the 2GB a section can be");
+			}
+
+			//sort the records by path
+			int[] pathOrder = new int[count];
+			for(int i=0;i<count;i++) pathOrder[i] = i;
+			sortByPath(pathOrder, new int[count], 0, count);
+
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile), 1<<16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(count);
+				out.writeInt(algorithm);
+				out.writeInt(NUM_BANDS);
+				out.writeInt(numHashes);
+
+				long pathOffset = 0;
+				for(int i=0;i<count;i++) {
+					int record = pathOrder[i];
+					for(int hash=0;hash<numHashes;hash++) {
+						out.writeLong(hashes[record*numHashes+hash]);
+					}
+					out.writeLong(sizes[record]);
+					out.writeLong(modifieds[record]);
+					out.writeLong(pathOffset);
+					pathOffset += 4+paths.get(record).length;
+				}
+
+				//hashes in the order they are written so the bands can be sorted by record number
+				long[] sortedHashes = new long[count];
+				for(int i=0;i<count;i++) sortedHashes[i] = hashes[pathOrder[i]*numHashes];
+
+				//the band value above the record number, so sorting the keys sorts the records by band
+				long[] bandKeys = new long[count];
+				for(int band=0;band<NUM_BANDS;band++) {
+					for(int i=0;i<count;i++) {
+						bandKeys[i] = ((long)bandValue(sortedHashes[i], band)<<32) | i;
+					}
+					Arrays.sort(bandKeys);
+
+					for(int i=0;i<count;i++) {
+						out.writeInt((int)bandKeys[i]);
+					}
+				}
+
+				for(int i=0;i<count;i++) {
+					byte[] pathBytes = paths.get(pathOrder[i]);
+					out.writeInt(pathBytes.length);
+					out.write(pathBytes);
+				}
+			}
+		}
+
+		/**
+		 * sortByPath
+		 *
+		 * Merge sort of the record numbers from to to by the bytes of their paths.
+		 *
+		 * @param order - record numbers to sort.
+		 * @param temp - as long as order.
+		 */
+		private void sortByPath(int[] order, int[] temp, int from, int to) {
+			if(to-from<2) return;
+
+			int middle = (from+to)>>>1;
+			sortByPath(order, temp, from, middle);
+			sortByPath(order, temp, middle, to);
+			if(comparePaths(order[middle-1], order[middle])<=0) return;
+
+			System.arraycopy(order, from, temp, from, to-from);
+			int left = from;
+			int right = middle;
+			for(int i=from;i<to;i++) {
+				if(right==to || (left<middle && comparePaths(temp[left], temp[right])<=0)) {
+					order[i] = temp[left++];
+				}
+				else {
+					order[i] = temp[right++];
+				}
+			}
+		}
+
+		private int comparePaths(int record1, int record2) {
+			return Arrays.compareUnsigned(paths.get(record1), paths.get(record2));
+		}
+	}
+}
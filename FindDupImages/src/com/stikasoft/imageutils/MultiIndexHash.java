@@ -0,0 +1,169 @@
+package com.stikasoft.imageutils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * MultiIndexHash
+ *
+ * Multi index hashing of 64 bit image hashes.
+ * The hash is split into bands and each band has its own hash table. If two hashes are within distance d
+ * then by the pigeonhole principle at least one of the k bands differs by d/k bits or less. So a search only has to
+ * look in each table for the band values within d/k bits of the query band and check those candidates.
+ *
+ * The number of bands is picked for the distance the index will be searched with. For small distances there are d+1 bands
+ * so only exact band matches are looked up. For larger distances the hash is split into 4 bands of 16 bits and the close
+ * band values are enumerated. With the -A distances of 2/5/8/11 (searches up to 1/4/7/10 bits) the bands are 2x32, 4x16 (radius 1), 4x16 (radius 1) and 4x16 (radius 2).
+ *
+ * The index is not thread safe. Searches can run at the same time as each other, but not with an add.
+ *
+ * @author Carl Stika
+ *
+ * @param <T> - value stored with each hash
+ */
+public class MultiIndexHash<T> implements HashIndex<T> {
+
+	private int numBands;
+	private int[] bandShift;
+	private int[] bandBits;
+	private List<Map<Integer, int[]>> bandTables = new ArrayList<>();
+
+	private long[] hashes = new long[1024];
+	private List<T> values = new ArrayList<>();
+	//added to by searches running at the same time
+	private LongAdder comparisons = new LongAdder();
+
+	/**
+	 *
+	 * @param maxDistance - the largest distance the index will normally be searched with.
+	 */
+	public MultiIndexHash(int maxDistance) {
+		numBands = (maxDistance<4) ? Math.max(2, maxDistance+1) : 4;
+
+		bandShift = new int[numBands];
+		bandBits = new int[numBands];
+		int shift = 64;
+		for(int band=0;band<numBands;band++) {
+			//Spread the left over bits over the first bands
+			bandBits[band] = 64/numBands + ((band<64%numBands) ? 1 : 0);
+			shift -= bandBits[band];
+			bandShift[band] = shift;
+
+			bandTables.add(new HashMap<>());
+		}
+	}
+
+	@Override
+	public void add(long hash, T value) {
+		int id = values.size();
+
+		if(id==hashes.length) {
+			hashes = Arrays.copyOf(hashes, hashes.length*2);
+		}
+		hashes[id] = hash;
+		values.add(value);
+
+		for(int band=0;band<numBands;band++) {
+			Map<Integer, int[]> table = bandTables.get(band);
+			int key = bandValue(hash, band);
+
+			//bucket[0] is the number of ids in the bucket
+			int[] bucket = table.get(key);
+			if(bucket==null) {
+				bucket = new int[4];
+				table.put(key, bucket);
+			}
+			else if(bucket[0]+1==bucket.length) {
+				bucket = Arrays.copyOf(bucket, bucket.length*2);
+				table.put(key, bucket);
+			}
+			bucket[0]++;
+			bucket[bucket[0]] = id;
+		}
+	}
+
+	@Override
+	public List<T> search(long hash, int maxDistance) {
+		List<T> result = new ArrayList<>();
+		int bandRadius = maxDistance/numBands;
+
+		for(int band=0;band<numBands;band++) {
+			probe(result, hash, maxDistance, bandRadius, band, bandValue(hash, band), 0);
+		}
+
+		return result;
+	}
+
+	/**
+	 * probe
+	 *
+	 * Looks up the band value and then every value made by flipping up to radius more bits, starting at bit firstBit.
+	 *
+	 * @param result
+	 * @param hash - hash being searched for
+	 * @param maxDistance
+	 * @param radius - number of bits still allowed to flip
+	 * @param band
+	 * @param key - band value to look up
+	 * @param firstBit - lowest bit that can still be flipped, so each value is only looked up once.
+	 */
+	private void probe(List<T> result, long hash, int maxDistance, int radius, int band, int key, int firstBit) {
+		int[] bucket = bandTables.get(band).get(key);
+		if(bucket!=null) {
+			int bandRadius = maxDistance/numBands;
+			comparisons.add(bucket[0]);
+
+			for(int i=1;i<=bucket[0];i++) {
+				int id = bucket[i];
+				long candidate = hashes[id];
+
+				if(Long.bitCount(candidate^hash)<=maxDistance && !foundInEarlierBand(candidate, hash, band, bandRadius)) {
+					result.add(values.get(id));
+				}
+			}
+		}
+
+		if(radius>0) {
+			for(int bit=firstBit;bit<bandBits[band];bit++) {
+				probe(result, hash, maxDistance, radius-1, band, key^(1<<bit), bit+1);
+			}
+		}
+	}
+
+	/**
+	 * A candidate is reported by the first band that is within the band radius. This stops a hash being reported
+	 * more than once without having to keep a set of the ids already found.
+	 *
+	 * @param candidate
+	 * @param hash
+	 * @param band
+	 * @param bandRadius
+	 * @return
+	 */
+	private boolean foundInEarlierBand(long candidate, long hash, int band, int bandRadius) {
+		for(int earlierBand=0;earlierBand<band;earlierBand++) {
+			if(Integer.bitCount(bandValue(candidate, earlierBand)^bandValue(hash, earlierBand))<=bandRadius) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int bandValue(long hash, int band) {
+		return (int)((hash>>>bandShift[band]) & ((1L<<bandBits[band])-1));
+	}
+
+	@Override
+	public int size() {
+		return values.size();
+	}
+
+	@Override
+	public long comparisons() {
+		return comparisons.sum();
+	}
+}
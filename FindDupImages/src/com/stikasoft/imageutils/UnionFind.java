@@ -0,0 +1,113 @@
+package com.stikasoft.imageutils;
+
+import java.util.Arrays;
+
+/***
+ * UnionFind
+ *
+ * Disjoint sets of the ids 0 to size()-1. Sets are joined with union and find gives the root id of the set an id is in.
+ * Everything is kept in int arrays, there is no object for each id, so millions of ids only take a few bytes each.
+ * Union by size and path halving keep the trees flat so find is close to constant time.
+ *
+ * Not thread safe.
+ *
+ * @author Carl Stika
+ *
+ */
+public class UnionFind {
+
+	private int[] parent = new int[1024];
+	//number of ids in the set, only valid for roots
+	private int[] setSize = new int[1024];
+	//lowest id in the set, only valid for roots
+	private int[] lowest = new int[1024];
+	private int size = 0;
+
+	/**
+	 * add
+	 *
+	 * Adds a new id in a set of its own.
+	 *
+	 * @return - the new id.
+	 */
+	public int add() {
+		if(size==parent.length) {
+			parent = Arrays.copyOf(parent, size*2);
+			setSize = Arrays.copyOf(setSize, size*2);
+			lowest = Arrays.copyOf(lowest, size*2);
+		}
+
+		int id = size++;
+		parent[id] = id;
+		setSize[id] = 1;
+		lowest[id] = id;
+		return id;
+	}
+
+	/**
+	 *
+	 * @return - number of ids.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * find
+	 *
+	 * @param id
+	 * @return - the root id of the set the id is in.
+	 */
+	public int find(int id) {
+		while(parent[id]!=id) {
+			//path halving, point every other node at its grandparent
+			parent[id] = parent[parent[id]];
+			id = parent[id];
+		}
+		return id;
+	}
+
+	/**
+	 * union
+	 *
+	 * Joins the sets of the two ids.
+	 *
+	 * @param id1
+	 * @param id2
+	 * @return - false if they were already in the same set.
+	 */
+	public boolean union(int id1, int id2) {
+		int root1 = find(id1);
+		int root2 = find(id2);
+		if(root1==root2) return false;
+
+		//the smaller set goes under the larger
+		if(setSize[root1]<setSize[root2]) {
+			int swap = root1;
+			root1 = root2;
+			root2 = swap;
+		}
+		parent[root2] = root1;
+		setSize[root1] += setSize[root2];
+		lowest[root1] = Math.min(lowest[root1], lowest[root2]);
+		return true;
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return - number of ids in the set the id is in.
+	 */
+	public int setSize(int id) {
+		return setSize[find(id)];
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return - lowest id in the set the id is in. That is the first one added.
+	 */
+	public int lowest(int id) {
+		return lowest[find(id)];
+	}
+}
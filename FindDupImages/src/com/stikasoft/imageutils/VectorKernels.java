@@ -0,0 +1,101 @@
+package com.stikasoft.imageutils;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/***
+ * VectorKernels
+ *
+ * Vector API versions of the loops in HashKernels. This class must only be loaded when the jdk.incubator.vector module
+ * is there, HashKernels checks before it uses it.
+ *
+ * The pixels are gathered from the raster with their offsets, converted to floats and turned into gray scale a vector at a time.
+ * The gray scale is worked out with a multiply and an add for each color, not a fused multiply add, so the values are the
+ * same as the plain Java version. The rows of gray scale are added to the column sums of the box average a vector at a time.
+ * The methods only do whole vectors and return where the plain version has to carry on.
+ *
+ * @author Carl Stika
+ *
+ */
+class VectorKernels {
+
+	private static final VectorSpecies<Float> FLOAT = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> INT = VectorSpecies.of(int.class, FLOAT.vectorShape());
+	//a byte for each float lane
+	private static final VectorSpecies<Byte> BYTE = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, FLOAT.vectorBitSize()/4)));
+
+	private VectorKernels() {
+	}
+
+	/**
+	 * Narrower vectors than AVX2 are not worth it for these loops.
+	 */
+	static boolean isSupported() {
+		return FLOAT.vectorBitSize()>=256 && BYTE.length()==FLOAT.length();
+	}
+
+	static int lumaRow(byte[] data, int base, int[] offsets, int count, int redOffset, int greenOffset, int blueOffset, float[] luma) {
+		int bound = FLOAT.loopBound(count);
+		for(int i=0;i<bound;i+=FLOAT.length()) {
+			FloatVector red = toFloat(ByteVector.fromArray(BYTE, data, base+redOffset, offsets, i));
+			FloatVector green = toFloat(ByteVector.fromArray(BYTE, data, base+greenOffset, offsets, i));
+			FloatVector blue = toFloat(ByteVector.fromArray(BYTE, data, base+blueOffset, offsets, i));
+			toLuma(red, green, blue).intoArray(luma, i);
+		}
+		return bound;
+	}
+
+	static int lumaRow(int[] data, int base, int[] offsets, int count, int redShift, int greenShift, int blueShift, float[] luma) {
+		int bound = INT.loopBound(count);
+		for(int i=0;i<bound;i+=INT.length()) {
+			IntVector pixels = IntVector.fromArray(INT, data, base, offsets, i);
+			FloatVector red = color(pixels, redShift);
+			FloatVector green = color(pixels, greenShift);
+			FloatVector blue = color(pixels, blueShift);
+			toLuma(red, green, blue).intoArray(luma, i);
+		}
+		return bound;
+	}
+
+	static int grayRow(byte[] data, int base, int[] offsets, int count, float[] luma) {
+		int bound = FLOAT.loopBound(count);
+		for(int i=0;i<bound;i+=FLOAT.length()) {
+			toFloat(ByteVector.fromArray(BYTE, data, base, offsets, i)).intoArray(luma, i);
+		}
+		return bound;
+	}
+
+	static int addRow(float[] row, float[] sums, int count) {
+		int bound = FLOAT.loopBound(count);
+		for(int i=0;i<bound;i+=FLOAT.length()) {
+			FloatVector.fromArray(FLOAT, sums, i).add(FloatVector.fromArray(FLOAT, row, i)).intoArray(sums, i);
+		}
+		return bound;
+	}
+
+	/**
+	 * Unsigned bytes to floats.
+	 */
+	private static FloatVector toFloat(ByteVector bytes) {
+		return (FloatVector)bytes.convertShape(VectorOperators.B2I, INT, 0)
+				.lanewise(VectorOperators.AND, 255)
+				.convertShape(VectorOperators.I2F, FLOAT, 0);
+	}
+
+	private static FloatVector color(IntVector pixels, int shift) {
+		return (FloatVector)pixels.lanewise(VectorOperators.LSHR, shift)
+				.lanewise(VectorOperators.AND, 255)
+				.convertShape(VectorOperators.I2F, FLOAT, 0);
+	}
+
+	/**
+	 * Same as HashContext.toLuma.
+	 */
+	private static FloatVector toLuma(FloatVector red, FloatVector green, FloatVector blue) {
+		return red.mul(0.2126f).add(green.mul(0.7152f)).add(blue.mul(0.0722f));
+	}
+}
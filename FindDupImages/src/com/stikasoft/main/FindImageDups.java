@@ -1,449 +1,1722 @@
-package com.stikasoft.main;
-
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.function.Consumer;
-
-import javax.activation.MimetypesFileTypeMap;
-import javax.imageio.ImageIO;
-
-import com.stikasoft.imageutils.ImageHash;
-import com.stikasoft.imageutils.ImageUtils;
-
-/***
- * FindImageDups
- *  
- * @author Carl Stika
- *
- *
- * Find duplicate Images in the current directory or sub directories.
- * It will output a list of duplicate names. use the -m option to move the duplicates to a directory.
- * 
- * 
- */
-public class FindImageDups {
-
-	/***
-	 * ImageHashInfo
-	 * 
-	 * Class to hold the filename and hash of the image.
-	 * 
-	 *
-	 */
-	class ImageHashInfo {
-		public String filename; //full path ogf image
-		public String imageHash;
-		
-		public ImageHashInfo(String filename, String imageHash) {
-			super();
-			this.filename = filename;
-			this.imageHash = imageHash;
-		}
-
-		public List<ImageHashInfo> possibleDups = new ArrayList<>();
-	}
-	
-	private boolean recursive = false;
-	private String directoryToSearch = "";
-	private String[] imageList;
-	private List<ImageHashInfo> listImageHashInfo = new ArrayList<>(); 
-	private ImageHash imageHash = new ImageHash();
-	private int imageDistance = 5;
-	private boolean abortProgram = false;
-	private String directoryToMoveFilesTo = "";
-	
-	
-	public static void main(String[] args) {
-		FindImageDups program = new FindImageDups();
-		
-		program.start(args);
-		
-	}
-
-	/**
-	 * start
-	 * 
-	 * main code of the app.
-	 * 
-	 * @param args
-	 */
-	private void start(String[] args) {
-		if(args.length>0) {
-			if(processArgs(args)) {
-				if(!abortProgram) {
-					findDupsImages();
-					printDups();
-				}
-			}
-			else {
-				showUsage();
-			}
-		}
-		else {
-			showUsage();
-		}
-	}
-
-	/**
-	 * print a list of duplicate files
-	 */
-	private void printDups() {
-		for(ImageHashInfo hashInfo : listImageHashInfo) {
-			if(hashInfo.possibleDups.size()>0) {
-				System.out.println(hashInfo.filename);
-				for(ImageHashInfo dupHashInfo : hashInfo.possibleDups) {
-					System.out.println("\t> " + dupHashInfo .filename);
-				}
-			}
-		}
-		
-	}
-
-	/***
-	 * showUsage
-	 * 
-	 */
-	public void showUsage() {
-		
-		System.out.println("Duplicate Image finder");
-		System.out.println("Usage : DupImageFinder [-rh] [-A=0|1|2|3] [-M=directory] [--help] <dir to search>");
-		System.out.println("Options : ");
-
-		System.out.println("\nArgument : directory to search for duplicat files");
-		System.out.println("\t-h, show help.");
-		System.out.println("\t-r, do recursive find.");
-		System.out.println("\t-A=acc,\tImage Accuracy. 0 - is most accurate,  3 is least. (Default is 1)");
-		System.out.println("\t-M=directory,\tDirectory to move dups to.");
-		
-		System.out.println("\nInfo : ");
-		System.out.println("\tProgram searches the directory to find Perceptial same images");
-		System.out.println("\tYou can specify the accuracy to find the images.\n\tThe images can be slightly change and it can still find a close candidate.");
-		System.out.println("\n\tIf the -M option is used then the duplicate images will be moved to the directory specified.");
-		
-		imageExtsSupported();
-	}
-
-	/**
-	 * processArgs
-	 * 
-	 * @param args  -  Arguments from the command line
-	 * @return - True if parameters are correct. False if there is a problem. 
-	 */
-	private boolean processArgs(String[] args) {
-		boolean processingSuccessful = true;		
-
-		//search for options
-		for(String word : args) {
-			if(word.indexOf("--")==0) {
-				processingSuccessful = processLongOption(word.substring(2));
-			}
-			if(word.charAt(0)=='-') {
-				processingSuccessful = processShortOption(word.substring(1));
-			}
-			else {
-				//assume argument
-				if(directoryToSearch.length()==0) {
-					directoryToSearch = word;
-				}
-				else {
-					processingSuccessful = false;
-				}
-			}
-			
-			if(processingSuccessful==false | abortProgram) break;
-		}
-		
-		return processingSuccessful;
-	}
-
-
-	private boolean processShortOption(String param) {
-		boolean result = true;
-		
-		int equalsSign = param.indexOf('=');
-		if(equalsSign>-1) {
-			//Short option with a argument
-			String shortOption = param.substring(0, equalsSign).trim();
-			String argument = param.substring(equalsSign+1).trim();
-			
-			switch(shortOption.charAt(0)) {
-				case 'A':
-					{
-						try {
-							int accuracy = Integer.parseInt(argument);
-							
-							if(accuracy>=0 && accuracy<=3) {
-								imageDistance = 2 + accuracy*3; 
-							}
-						}
-						catch(NumberFormatException ex) {
-							System.out.printf("%s is not a number.\n", argument);
-						}
-						
-					}
-					break;
-				case 'M':
-					if(!isValidDirectory(argument)) {
-						System.out.printf("\nError : directory '%s' does not exist\n", argument);
-						result = false;
-					}
-					break;
-				default:
-					result = false; //bad option
-					break;
-			}
-			
-			
-		}
-		else {
-			//short option without a argument. Can be multiple options together.
-			for(char l : param.toCharArray()) {
-				switch(l) {
-				case 'r':
-					recursive = true;
-					break;
-				default:
-					result = false;
-					break;
-				}
-				
-				if(result==false) break; //stop processing
-			}
-		}
-		return result;
-	}
-
-	/**
-	 * Checks if directory is valid.
-	 * @param argument
-	 * @return
-	 */
-	private boolean isValidDirectory(String argument) {
-		File directory = new File(argument);
-		
-		if(directory.exists() && directory.isDirectory()) {
-			directoryToMoveFilesTo = directory.getAbsolutePath();
-
-			return true;
-		}
-		
-		return false;
-	}
-
-	/**
-	 * 
-	 * @param option
-	 * @return
-	 */
-	private boolean processLongOption(String option) {
-		boolean result = false;
-		
-		if(option.equalsIgnoreCase("help")) {
-			showUsage();
-			result = true;
-			abortProgram = true;
-		}
-		return result;
-	}
-
-
-	/**
-	 * crawlImageDirectory
-	 * 
-	 * Crawls the image directory and class the fileFunc for each image file found.
-	 * 
-	 * @param fileFunc
-	 * @return
-	 */
-	private int crawlImageDirectory(Consumer<File> fileFunc) {
-		File startDir = new File(directoryToSearch);
-
-		MimetypesFileTypeMap mimeTypes = new MimetypesFileTypeMap();
-		List<File> dirToSearch = new ArrayList<>();
-		dirToSearch.add(startDir);
-		int numImages =0;
-		
-		while(dirToSearch.size()>0) {
-			File dir = dirToSearch.get(0);
-			dirToSearch.remove(0);
-			
-			File[] files = dir.listFiles();
-			
-			for(File file : files) {
-				if(file.isDirectory()) {
-					if(recursive) dirToSearch.add(file);  
-				}
-				else {
-					String mimetype = mimeTypes.getContentType(file);
-					if(mimetype.contains("image/")) {
-						fileFunc.accept(file);
-					}
-				}
-			}
-		}
-
-		return numImages;
-	}
-
-	private int totalImages = 0;
-	private int currentImageNum = 0;
-	
-	/**
-	 * findDupsImages
-	 * 
-	 * Find all duplicate images
-	 */
-	private void findDupsImages() {
-		File startDir = new File(directoryToSearch);
-
-		//Make sure the directory exists.
-		if(startDir.exists() && startDir.isDirectory()) {
-			System.out.printf("Searching for dups in directory %s\nUsing distance %d\n",  directoryToSearch, imageDistance);
-			if(!directoryToMoveFilesTo.isEmpty()) {
-				System.out.printf("Copying duplicate images to %s\n", directoryToMoveFilesTo); 
-			}
-		}
-		else {
-			System.out.printf("%s is does not exists or is not a directory\n", directoryToSearch);
-			return;
-		}
-		
-		//Count the number of images in the ddirectorys
-		crawlImageDirectory(file->totalImages++);
-		System.out.println("totalImages To check = " + totalImages);
-
-		if(totalImages>0) {
-			crawlImageDirectory(file->addPictureToList(file));
-		}
-		
-	}
-	
-	/**
-	 * addPictureToList
-	 * 
-	 * loads the picture and creates the hash for the image.
-	 *  
-	 * @param file
-	 */
-	private void addPictureToList(File file) {
-    	BufferedImage displayImage = ImageUtils.loadImage(file.getAbsolutePath());
-    	if(displayImage!=null) {
-    		String imageDHashString = imageHash.DifferenceHash(displayImage);
-    		currentImageNum++;
-    		printProgressBar(currentImageNum, totalImages);
-    		addHashToList(file.getAbsolutePath(), imageDHashString);
-    	}
-	}
-
-	/**
-	 * 
-	 * Adds the hash to the hash list. If it is close
-	 * @param fileFullPath
-	 * @param imageHashString
-	 */
-	private void addHashToList(String fileFullPath, String imageHashString) {
-		boolean foundDup = false;
-
-		//see if the hash is already there.
-		for(ImageHashInfo imageInfo : listImageHashInfo) {
-			if(imageHash.distanceBetweenHash(imageInfo.imageHash, imageHashString)<imageDistance) {
-				foundDup = true;
-				imageInfo.possibleDups.add(new ImageHashInfo(fileFullPath, imageHashString));
-				
-				moveDuplicateImage(fileFullPath);
-			}
-		}
-		
-		if(!foundDup) {
-			listImageHashInfo.add(new ImageHashInfo(fileFullPath, imageHashString));
-		}
-		
-	}
-
-	/***
-	 * moveDuplicateImage
-	 * 
-	 * Moves the image file to the directory. It will lose the full path so it might collide with a already moved file.
-	 * 
-	 * @param fileFullPath
-	 */
-	private void moveDuplicateImage(String fileFullPath) {
-		if(!directoryToMoveFilesTo.isEmpty()) {
-			try {
-				Files.move(Paths.get(fileFullPath), Paths.get(directoryToMoveFilesTo).resolve(Paths.get(fileFullPath).getFileName()));
-			} catch (FileAlreadyExistsException e) {
-				System.err.printf("Error : Moving %s to %s. File Exists\n", Paths.get(fileFullPath), Paths.get(directoryToMoveFilesTo).resolve(Paths.get(fileFullPath).getFileName()));
-			} catch (IOException e) {
-				System.err.printf("Error : Moving %s to %s\n", Paths.get(fileFullPath), Paths.get(directoryToMoveFilesTo).resolve(Paths.get(fileFullPath).getFileName()));
-			}
-		}
-	}
-
-	/**
-	 * imageExtsSupported
-	 * 
-	 * Show support image files.
-	 * @return
-	 */
-	private String imageExtsSupported() {
-		String exts = "";
-		
-		System.out.println("\n\tImages supported:");
-		imageList = ImageIO.getReaderMIMETypes();
-		for(String type : imageList) {
-			System.out.println("\t\t" + type);
-		}
-		
-		return exts;
-	}
-
-	/**
-	 * Show progress
-	 * @param index
-	 * @param maxIndex
-	 */
-	private void printProgressBar(int index, int maxIndex) {
-		String cursorAnimation = "|/-\\|/-\\";
-		int maxTicks = 60; //Number of ticks for the progress bar
-		char tickChar = '*';
-		String cursorLeft = ""+(char)(8); //Ascii backspace
-
-		int percent = (index*100)/maxIndex; 
-
-		int numStars = (index*maxTicks)/maxIndex; 
-		char cursorChar = cursorAnimation.charAt((index)%cursorAnimation.length());
-		
-		if(percent==100) cursorChar=tickChar;
-		
-		String precentStr = "Images Processed : [" + repeat(""+tickChar, numStars) + cursorChar + repeat(" ", maxTicks-numStars-1)+"] " + percent + "%";
-		System.out.print(precentStr);
-		
-		//Move the cursor to the beginning of the line. This seems to be platform agnostic. Tried on windows cmd, linux, windows cygwin and window power shell. 
-		System.out.print(repeat(cursorLeft, precentStr.length()));
-		
-	}
-	
-	/**
-	 * 
-	 * Simple repeat function to build string.
-	 * @param string
-	 * @param numRepeat
-	 * @return
-	 */
-	private String repeat(String string, int numRepeat) {
-		String out = "";
-		for(int i=0;i<numRepeat;i++) {
-			out += string;
-		}
-		return out;
-	}
-
-
-
-}
+package com.stikasoft.main;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import com.stikasoft.imageutils.AspectIndex;
+import com.stikasoft.imageutils.BKTree;
+import com.stikasoft.imageutils.DuplicateClusters;
+import com.stikasoft.imageutils.ExactDuplicateFinder;
+import com.stikasoft.imageutils.ExternalHashJoin;
+import com.stikasoft.imageutils.HashCache;
+import com.stikasoft.imageutils.HashKernels;
+import com.stikasoft.imageutils.HashLibrary;
+import com.stikasoft.imageutils.ImageHash;
+import com.stikasoft.imageutils.ImageHeader;
+import com.stikasoft.imageutils.ImageUtils;
+import com.stikasoft.imageutils.MultiIndexHash;
+
+/***
+ * FindImageDups
+ *  
+ * @author Carl Stika
+ *
+ *
+ * Find duplicate Images in the current directory or sub directories.
+ * It will output a list of duplicate names. use the -m option to move the duplicates to a directory.
+ * 
+ * 
+ */
+public class FindImageDups {
+
+	/***
+	 * ImageHashInfo
+	 * 
+	 * Class to hold the filename and hash of the image.
+	 * 
+	 *
+	 */
+	class ImageHashInfo {
+		public String filename; //full path ogf image
+		public long imageHash;
+		
+		public ImageHashInfo(String filename, long imageHash) {
+			super();
+			this.filename = filename;
+			this.imageHash = imageHash;
+		}
+
+		public List<ImageHashInfo> possibleDups = new ArrayList<>();
+	}
+	
+	private boolean recursive = false;
+	private String directoryToSearch = "";
+	private String[] imageList;
+	//Library images that were matched, with the images that matched them
+	private List<ImageHashInfo> listImageHashInfo = new ArrayList<>(); 
+	//Every image hashed is in the index by its id in the clusters. Only split by shape with --aspect.
+	private AspectIndex<Integer> hashIndex;
+	private DuplicateClusters clusters;
+	//Taken by the match stage to add to the index and the clusters, the lookup server reads them with the read lock
+	private ReadWriteLock indexLock = new ReentrantReadWriteLock();
+	private int keepRule = DuplicateClusters.KEEP_FIRST;
+	private List<int[]> dupGroups = new ArrayList<>();
+	private int[] groupKeepers = new int[0];
+	//ids of the moved dups, with the id of the image kept in their place. New dups in watch mode are reported against that image.
+	private Map<Integer, Integer> movedImages = new HashMap<>();
+	private boolean useBandIndex = false;
+	private String cacheFileName = "";
+	private boolean useCache = true;
+	private boolean useThumbnails = false;
+	private boolean findExactCopies = true;
+	private ExactDuplicateFinder exactDuplicateFinder;
+	private HashCache hashCache;
+	private String libraryFileName = "";
+	private boolean addToLibrary = false;
+	private HashLibrary hashLibrary;
+	private Map<Integer, ImageHashInfo> libraryImages = new HashMap<>();
+	private ImageHash imageHash = new ImageHash();
+	private int imageDistance = 5;
+	private int hashAlgorithm = ImageHash.PERCEPTUAL_HASH;
+	//Number of hashes of each orientation of an image, see ImageHash.hashImageAll
+	private int numHashes = 1;
+	//Hash every orientation of an image so turned and mirrored dups are found
+	private boolean findRotations = false;
+	//With --aspect only images whose width over height is within this percent are matched, 0 to match any shape
+	private int aspectPercent = 0;
+	//Also look at the first bytes of files without an image extension
+	private boolean probeFiles = false;
+	//With a spill directory the hashes are matched out of memory by an ExternalHashJoin after the crawl
+	private String spillDirName = "";
+	private int spillMemoryMB = 256;
+	private ExternalHashJoin hashJoin;
+	//With --shard only the images in the shard are hashed, shard is 1 to numShards. --merge matches the hashes of all the shards.
+	private int shard = 0;
+	private int numShards = 0;
+	private boolean mergeShards = false;
+	private List<String> shardFileNames = new ArrayList<>();
+	private boolean abortProgram = false;
+	private String directoryToMoveFilesTo = "";
+	private MoveStage moveStage;
+	private boolean dryRun = false;
+	private boolean undoMoves = false;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private ExecutorService hashWorkers;
+	private ThreadPoolExecutor matchStage;
+	//A permit for each image passed to the match stage and not matched yet, so the hash workers and the merge can only get
+	//CRAWL_AHEAD images ahead of it and the match queue does not fill memory when the hashes come from the cache
+	private Semaphore aheadOfMatch = new Semaphore(CRAWL_AHEAD);
+	private int outputFormat = MatchWriter.FORMAT_TEXT;
+	private String outputFileName = "";
+	private MatchWriter matchWriter;
+	private boolean watchMode = false;
+	private WatchService watcher;
+	//Set when the first search is done and new images are reported as they arrive
+	private volatile boolean watching = false;
+	private Set<String> imageExtensions;
+	private int serverPort = 0;
+	private HashLookupServer lookupServer;
+	private PipelineMetrics metrics = new PipelineMetrics();
+	private String metricsFileName = "";
+	
+	
+	public static void main(String[] args) {
+		FindImageDups program = new FindImageDups();
+		
+		program.start(args);
+		
+	}
+
+	/**
+	 * start
+	 * 
+	 * main code of the app.
+	 * 
+	 * @param args
+	 */
+	private void start(String[] args) {
+		if(args.length>0) {
+			if(processArgs(args)) {
+				if(!abortProgram && undoMoves) {
+					int numUndone = MoveStage.undo(Paths.get(directoryToMoveFilesTo), dryRun);
+					if(!dryRun) {
+						System.out.printf("Moved %d images back\n", numUndone);
+					}
+				}
+				else if(!abortProgram && openOutput()) {
+					findDupsImages();
+					if(hashIndex!=null) {
+						groupDups();
+						if(moveStage!=null && watcher==null) {
+							moveStage.finish(Long.MAX_VALUE);
+						}
+						reportMetrics(true);
+					}
+					printDups();
+					if(matchWriter!=null) {
+						matchWriter.flush();
+					}
+					if(lookupServer!=null) {
+						startServer();
+					}
+					if(watcher!=null) {
+						watchForImages();
+					}
+				}
+			}
+			else {
+				showUsage();
+			}
+		}
+		else {
+			showUsage();
+		}
+	}
+
+	/**
+	 * openOutput
+	 * 
+	 * Opens the file the matches are written to when the output is not text. If there is no file the matches go to
+	 * standard out and everything else the program prints goes to standard error, so the output can be piped to another program.
+	 * 
+	 * @return - false if the file could not be opened.
+	 */
+	private boolean openOutput() {
+		if(outputFormat==MatchWriter.FORMAT_TEXT) return true;
+		
+		Writer out;
+		if(outputFileName.isEmpty()) {
+			out = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8);
+			System.setOut(System.err);
+		}
+		else {
+			try {
+				out = Files.newBufferedWriter(Paths.get(outputFileName), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				System.err.printf("Error : Could not write to %s. %s\n", outputFileName, e.getMessage());
+				return false;
+			}
+		}
+		
+		matchWriter = new MatchWriter(out, outputFormat);
+		return true;
+	}
+
+	/**
+	 * print a list of duplicate files
+	 * Each group is printed as the image that is kept followed by its dups.
+	 * When the output is JSON Lines or CSV the groups are written as group lines instead.
+	 */
+	private void printDups() {
+		if(matchWriter!=null) {
+			for(int group=0;group<dupGroups.size();group++) {
+				int keeper = groupKeepers[group];
+				for(int id : dupGroups.get(group)) {
+					if(id!=keeper) {
+						matchWriter.write("group", clusters.getPath(id), ImageHash.closestOrientation(clusters.getHashes(id), numHashes, clusters.getHash(keeper)), clusters.getSize(id),
+								clusters.getWidth(id), clusters.getHeight(id),
+								clusters.getPath(keeper), clusters.getHash(keeper), clusters.getSize(keeper), clusters.getWidth(keeper), clusters.getHeight(keeper));
+					}
+				}
+			}
+			return;
+		}
+		
+		for(ImageHashInfo hashInfo : listImageHashInfo) {
+			if(hashInfo.possibleDups.size()>0) {
+				System.out.println(hashInfo.filename);
+				for(ImageHashInfo dupHashInfo : hashInfo.possibleDups) {
+					System.out.println("\t> " + dupHashInfo .filename);
+				}
+			}
+		}
+		
+		for(int group=0;group<dupGroups.size();group++) {
+			int keeper = groupKeepers[group];
+			System.out.println(clusters.getPath(keeper));
+			for(int id : dupGroups.get(group)) {
+				if(id!=keeper) {
+					System.out.println("\t> " + clusters.getPath(id));
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * groupDups
+	 * 
+	 * Makes the disjoint groups of dups from the close pairs found by the match stage and picks the image to keep in each group.
+	 * With -M the other images of each group are moved.
+	 */
+	private void groupDups() {
+		dupGroups = clusters.groups();
+		groupKeepers = new int[dupGroups.size()];
+		
+		for(int group=0;group<dupGroups.size();group++) {
+			int keeper = clusters.keeper(dupGroups.get(group), keepRule);
+			groupKeepers[group] = keeper;
+			
+			for(int id : dupGroups.get(group)) {
+				if(id!=keeper && moveDuplicateImage(clusters.getPath(id))) {
+					movedImages.put(id, keeper);
+				}
+			}
+		}
+	}
+
+	/***
+	 * showUsage
+	 * 
+	 */
+	public void showUsage() {
+		
+		System.out.println("Duplicate Image finder");
+		System.out.println("Usage : DupImageFinder [-rh] [-A=0|1|2|3] [-M=directory] [-j=threads] [-H=p|d|a|c] [-I=tree|bands] [--cache=file] [--nocache] [--thumbnails] [--noexact] [--novector] [--rotations] [--aspect[=percent]] [--probe] [--library=file [--add]] [--spill=directory [--memory=MB]] [--shard=i/N] [--merge[=files]] [--watch] [--serve=port] [--metrics=file] [--keep=first|resolution|oldest|shortest|largest] [--format=text|jsonl|csv] [--output=file] [--dryrun] [--undo] [--help] <dir to search>");
+		System.out.println("Options : ");
+
+		System.out.println("\nArgument : directory to search for duplicat files");
+		System.out.println("\t-h, show help.");
+		System.out.println("\t-r, do recursive find.");
+		System.out.println("\t-A=acc,\tImage Accuracy. 0 - is most accurate,  3 is least. (Default is 1)");
+		System.out.println("\t-M=directory,\tDirectory to move dups to. They keep their path under the search directory and the moves are written to a journal in the directory.");
+		System.out.println("\t-j=threads,\tNumber of threads used to load and hash images. (Default is the number of cores)");
+		System.out.println("\t-H=p|d|a|c,\tHash used to compare images. Perceptual, difference or average hash, or a cascade that finds close images with the difference hash and checks them with the average and perceptual hashes. (Default is p)");
+		System.out.println("\t-I=tree|bands,\tIndex used to find close images. BK tree or multi index band tables. (Default is tree)");
+		System.out.println("\t--cache=file,\tFile to keep the image hashes in between runs. (Default is .finddupimages.cache in the search directory)");
+		System.out.println("\t--nocache,\tDo not load or save the hash cache.");
+		System.out.println("\t--thumbnails,\tHash the embedded thumbnail of an image instead of the image when it has a good one.");
+		System.out.println("\t--noexact,\tDo not look for exact copies by comparing file contents before loading images.");
+		System.out.println("\t--rotations,\tAlso find dups that are turned 90, 180 or 270 degrees or mirrored. Keeps its own hash cache, .finddupimages.rotations.cache by default.");
+		System.out.println("\t--aspect[=percent],\tOnly match images that are the same shape, their width over height is within the percent. The sizes are read from the image headers, also for the images in the hash cache. (Default is 5)");
+		System.out.println("\t--probe,\tAlso find images without an image extension, by the magic bytes at the start of the file.");
+		System.out.println("\t--novector,\tDo not use the Vector API to hash images. It is only used when run with --add-modules jdk.incubator.vector.");
+		System.out.println("\t--library=file,\tCheck the images in the directory against a library instead of each other. The library is the hash cache of a run over the library directory.");
+		System.out.println("\t--add,\tAdd the images that are not in the library to the library.");
+		System.out.println("\t--spill=directory,\tFor searches too big for memory. The hashes are written to files in the directory and matched after the search, a part at a time.");
+		System.out.println("\t--memory=MB,\tMemory used for the hashes with --spill. (Default is 256)");
+		System.out.println("\t--shard=i/N,\tOnly hash shard i of N of the images and write their hashes to .finddupimages.shard-i-of-N.cache in the search directory.");
+		System.out.println("\t--merge[=files],\tFind the dups in the hashes written by the shards instead of searching. The files are comma separated. (Default is all the shard files in the search directory)");
+		System.out.println("\t--watch,\tKeep running after the search and check new or changed images as they arrive.");
+		System.out.println("\t--serve=port,\tKeep running after the search and answer lookups over HTTP on the local port.");
+		System.out.println("\t--keep=rule,\tImage kept in each group of dups. The first found, the largest resolution, the oldest, the shortest path or the largest file. (Default is first)");
+		System.out.println("\t--format=text|jsonl|csv,\tFormat of the dups. JSON Lines and CSV are written as the matches are found. (Default is text)");
+		System.out.println("\t--output=file,\tFile to write the JSON Lines or CSV to. (Default is standard out)");
+		System.out.println("\t--dryrun,\tPrint the moves -M would make without moving anything.");
+		System.out.println("\t--undo,\tMove the dups in the -M directory back to where they were, from its journal. No search is done.");
+		System.out.println("\t--metrics=file,\tWrite the time taken by each stage and the counters to the file. JSON if the file ends in .json, otherwise Prometheus text.");
+		
+		System.out.println("\nInfo : ");
+		System.out.println("\tProgram searches the directory to find Perceptial same images");
+		System.out.println("\tYou can specify the accuracy to find the images.\n\tThe images can be slightly change and it can still find a close candidate.");
+		System.out.println("\tImages that are close are put in the same group, so if A is close to B and B is close to C all three are one group.");
+		System.out.println("\n\tIf the -M option is used then the duplicate images will be moved to the directory specified.");
+		System.out.println("\n\tWith --library only the new images are loaded. Each one is looked up in the library index so the library is not hashed again.");
+		System.out.println("\n\tWith --spill only the images in a group of dups are kept in memory. It does not look for exact copies and does not save\n\tthe hash cache, both keep every file in memory. It works best with -A=0 or 1.");
+		System.out.println("\n\tWith --shard a search can be split over several programs or machines. Each file is in the shard given by a hash of its path\n\tunder the search directory. Run each shard, then run --merge once they are all done. The shards only hash, the dups\n\tand moves are done by --merge. The shard files keep the full paths so machines sharing a drive need it mounted at the same path.");
+		System.out.println("\n\tWith --watch the duplicates are printed, and moved if -M is used, as soon as they are written to the directory.\n\tStop it with Ctrl+C. The hash cache is saved when it stops.");
+		System.out.println("\n\tWith --serve other programs can ask if an image has been seen. Returns JSON with the close images.");
+		System.out.println("\t\tPOST http://localhost:port/image?distance=n with the image file as the body.");
+		System.out.println("\t\tGET http://localhost:port/hash?hash=16 hex digits&distance=n");
+		System.out.println("\t\tdistance can be left out. It is at most the distance -A searches with.");
+		
+		imageExtsSupported();
+	}
+
+	/**
+	 * processArgs
+	 * 
+	 * @param args  -  Arguments from the command line
+	 * @return - True if parameters are correct. False if there is a problem. 
+	 */
+	private boolean processArgs(String[] args) {
+		boolean processingSuccessful = true;		
+
+		//search for options
+		for(String word : args) {
+			if(word.indexOf("--")==0) {
+				processingSuccessful = processLongOption(word.substring(2));
+			}
+			else if(word.charAt(0)=='-') {
+				processingSuccessful = processShortOption(word.substring(1));
+			}
+			else {
+				//assume argument
+				if(directoryToSearch.length()==0) {
+					directoryToSearch = word;
+				}
+				else {
+					processingSuccessful = false;
+				}
+			}
+			
+			if(processingSuccessful==false | abortProgram) break;
+		}
+		
+		if(processingSuccessful && addToLibrary && libraryFileName.isEmpty()) {
+			System.out.printf("\nError : --add needs a --library to add to\n");
+			processingSuccessful = false;
+		}
+		
+		if(processingSuccessful && undoMoves && directoryToMoveFilesTo.isEmpty()) {
+			System.out.printf("\nError : --undo needs the -M directory to move the images back from\n");
+			processingSuccessful = false;
+		}
+		
+		if(processingSuccessful && !spillDirName.isEmpty() && (!libraryFileName.isEmpty() || watchMode || serverPort>0 || findRotations)) {
+			System.out.printf("\nError : --spill can not be used with --library, --watch, --serve or --rotations\n");
+			processingSuccessful = false;
+		}
+		
+		if(processingSuccessful && numShards>0 && (mergeShards || !useCache || !directoryToMoveFilesTo.isEmpty() || !libraryFileName.isEmpty()
+				|| !spillDirName.isEmpty() || watchMode || serverPort>0)) {
+			System.out.printf("\nError : --shard only hashes, it can not be used with --merge, --nocache, -M, --library, --spill, --watch or --serve\n");
+			processingSuccessful = false;
+		}
+		
+		if(processingSuccessful && aspectPercent>0 && (!libraryFileName.isEmpty() || !spillDirName.isEmpty() || numShards>0 || mergeShards)) {
+			System.out.printf("\nError : --aspect can not be used with --library, --spill, --shard or --merge, they do not keep the image sizes\n");
+			processingSuccessful = false;
+		}
+		
+		if(processingSuccessful && mergeShards && watchMode) {
+			System.out.printf("\nError : --merge can not be used with --watch\n");
+			processingSuccessful = false;
+		}
+		
+		if(processingSuccessful && !outputFileName.isEmpty() && outputFormat==MatchWriter.FORMAT_TEXT) {
+			System.out.printf("\nError : --output needs --format=jsonl or --format=csv\n");
+			processingSuccessful = false;
+		}
+		
+		return processingSuccessful;
+	}
+
+
+	private boolean processShortOption(String param) {
+		boolean result = true;
+		
+		int equalsSign = param.indexOf('=');
+		if(equalsSign>-1) {
+			//Short option with a argument
+			String shortOption = param.substring(0, equalsSign).trim();
+			String argument = param.substring(equalsSign+1).trim();
+			
+			switch(shortOption.charAt(0)) {
+				case 'A':
+					{
+						try {
+							int accuracy = Integer.parseInt(argument);
+							
+							if(accuracy>=0 && accuracy<=3) {
+								imageDistance = 2 + accuracy*3; 
+							}
+						}
+						catch(NumberFormatException ex) {
+							System.out.printf("%s is not a number.\n", argument);
+						}
+						
+					}
+					break;
+				case 'M':
+					if(!isValidDirectory(argument)) {
+						System.out.printf("\nError : directory '%s' does not exist\n", argument);
+						result = false;
+					}
+					break;
+				case 'j':
+					{
+						try {
+							int threads = Integer.parseInt(argument);
+							
+							if(threads>0) {
+								numThreads = threads;
+							}
+							else {
+								System.out.printf("%s is not a valid number of threads.\n", argument);
+								result = false;
+							}
+						}
+						catch(NumberFormatException ex) {
+							System.out.printf("%s is not a number.\n", argument);
+							result = false;
+						}
+					}
+					break;
+				case 'H':
+					if(argument.equalsIgnoreCase("p")) {
+						hashAlgorithm = ImageHash.PERCEPTUAL_HASH;
+					}
+					else if(argument.equalsIgnoreCase("d")) {
+						hashAlgorithm = ImageHash.DIFFERENCE_HASH;
+					}
+					else if(argument.equalsIgnoreCase("a")) {
+						hashAlgorithm = ImageHash.AVERAGE_HASH;
+					}
+					else if(argument.equalsIgnoreCase("c")) {
+						hashAlgorithm = ImageHash.CASCADE_HASH;
+					}
+					else {
+						System.out.printf("%s is not a valid hash. Use p, d, a or c.\n", argument);
+						result = false;
+					}
+					break;
+				case 'I':
+					if(argument.equalsIgnoreCase("tree")) {
+						useBandIndex = false;
+					}
+					else if(argument.equalsIgnoreCase("bands")) {
+						useBandIndex = true;
+					}
+					else {
+						System.out.printf("%s is not a valid index. Use tree or bands.\n", argument);
+						result = false;
+					}
+					break;
+				default:
+					result = false; //bad option
+					break;
+			}
+			
+			
+		}
+		else {
+			//short option without a argument. Can be multiple options together.
+			for(char l : param.toCharArray()) {
+				switch(l) {
+				case 'r':
+					recursive = true;
+					break;
+				default:
+					result = false;
+					break;
+				}
+				
+				if(result==false) break; //stop processing
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Checks if directory is valid.
+	 * @param argument
+	 * @return
+	 */
+	private boolean isValidDirectory(String argument) {
+		File directory = new File(argument);
+		
+		if(directory.exists() && directory.isDirectory()) {
+			directoryToMoveFilesTo = directory.toPath().toAbsolutePath().normalize().toString();
+
+			return true;
+		}
+		
+		return false;
+	}
+
+	/**
+	 * processLongOption
+	 * 
+	 * @param option - option without the leading --
+	 * @return - True if the option is correct.
+	 */
+	private boolean processLongOption(String option) {
+		boolean result = false;
+		
+		int equalsSign = option.indexOf('=');
+		if(equalsSign>-1) {
+			//Long option with a argument
+			String longOption = option.substring(0, equalsSign).trim();
+			String argument = option.substring(equalsSign+1).trim();
+			
+			if(longOption.equalsIgnoreCase("cache") && !argument.isEmpty()) {
+				cacheFileName = argument;
+				result = true;
+			}
+			else if(longOption.equalsIgnoreCase("library") && !argument.isEmpty()) {
+				libraryFileName = argument;
+				result = true;
+			}
+			else if(longOption.equalsIgnoreCase("keep")) {
+				result = true;
+				if(argument.equalsIgnoreCase("first")) {
+					keepRule = DuplicateClusters.KEEP_FIRST;
+				}
+				else if(argument.equalsIgnoreCase("resolution")) {
+					keepRule = DuplicateClusters.KEEP_RESOLUTION;
+				}
+				else if(argument.equalsIgnoreCase("oldest")) {
+					keepRule = DuplicateClusters.KEEP_OLDEST;
+				}
+				else if(argument.equalsIgnoreCase("shortest")) {
+					keepRule = DuplicateClusters.KEEP_SHORTEST_PATH;
+				}
+				else if(argument.equalsIgnoreCase("largest")) {
+					keepRule = DuplicateClusters.KEEP_LARGEST_FILE;
+				}
+				else {
+					System.out.printf("%s is not a valid keep rule. Use first, resolution, oldest, shortest or largest.\n", argument);
+					result = false;
+				}
+			}
+			else if(longOption.equalsIgnoreCase("format")) {
+				result = true;
+				if(argument.equalsIgnoreCase("text")) {
+					outputFormat = MatchWriter.FORMAT_TEXT;
+				}
+				else if(argument.equalsIgnoreCase("jsonl")) {
+					outputFormat = MatchWriter.FORMAT_JSONL;
+				}
+				else if(argument.equalsIgnoreCase("csv")) {
+					outputFormat = MatchWriter.FORMAT_CSV;
+				}
+				else {
+					System.out.printf("%s is not a valid format. Use text, jsonl or csv.\n", argument);
+					result = false;
+				}
+			}
+			else if(longOption.equalsIgnoreCase("output") && !argument.isEmpty()) {
+				outputFileName = argument;
+				result = true;
+			}
+			else if(longOption.equalsIgnoreCase("metrics") && !argument.isEmpty()) {
+				metricsFileName = argument;
+				result = true;
+			}
+			else if(longOption.equalsIgnoreCase("spill") && !argument.isEmpty()) {
+				spillDirName = argument;
+				result = true;
+			}
+			else if(longOption.equalsIgnoreCase("memory")) {
+				try {
+					int memory = Integer.parseInt(argument);
+					
+					if(memory>0) {
+						spillMemoryMB = memory;
+						result = true;
+					}
+					else {
+						System.out.printf("%s is not a valid memory size.\n", argument);
+					}
+				}
+				catch(NumberFormatException ex) {
+					System.out.printf("%s is not a number.\n", argument);
+				}
+			}
+			else if(longOption.equalsIgnoreCase("shard")) {
+				int slash = argument.indexOf('/');
+				try {
+					if(slash>0) {
+						shard = Integer.parseInt(argument.substring(0, slash).trim());
+						numShards = Integer.parseInt(argument.substring(slash+1).trim());
+					}
+				}
+				catch(NumberFormatException ex) {
+					numShards = 0;
+				}
+				
+				if(numShards>0 && shard>=1 && shard<=numShards) {
+					result = true;
+				}
+				else {
+					System.out.printf("%s is not a valid shard. Use i/N, where i is 1 to N.\n", argument);
+					numShards = 0;
+				}
+			}
+			else if(longOption.equalsIgnoreCase("merge") && !argument.isEmpty()) {
+				for(String fileName : argument.split(",")) {
+					if(!fileName.trim().isEmpty()) {
+						shardFileNames.add(fileName.trim());
+					}
+				}
+				mergeShards = true;
+				result = true;
+			}
+			else if(longOption.equalsIgnoreCase("aspect")) {
+				try {
+					int percent = Integer.parseInt(argument);
+					
+					if(percent>0 && percent<=100) {
+						aspectPercent = percent;
+						result = true;
+					}
+					else {
+						System.out.printf("%s is not a valid percent.\n", argument);
+					}
+				}
+				catch(NumberFormatException ex) {
+					System.out.printf("%s is not a number.\n", argument);
+				}
+			}
+			else if(longOption.equalsIgnoreCase("serve")) {
+				try {
+					int port = Integer.parseInt(argument);
+					
+					if(port>0 && port<=65535) {
+						serverPort = port;
+						result = true;
+					}
+					else {
+						System.out.printf("%s is not a valid port.\n", argument);
+					}
+				}
+				catch(NumberFormatException ex) {
+					System.out.printf("%s is not a number.\n", argument);
+				}
+			}
+		}
+		else if(option.equalsIgnoreCase("help")) {
+			showUsage();
+			result = true;
+			abortProgram = true;
+		}
+		else if(option.equalsIgnoreCase("nocache")) {
+			useCache = false;
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("thumbnails")) {
+			useThumbnails = true;
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("novector")) {
+			HashKernels.setUseVector(false);
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("merge")) {
+			mergeShards = true;
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("rotations")) {
+			findRotations = true;
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("aspect")) {
+			aspectPercent = DEFAULT_ASPECT_PERCENT;
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("probe")) {
+			probeFiles = true;
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("noexact")) {
+			findExactCopies = false;
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("add")) {
+			addToLibrary = true;
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("watch")) {
+			watchMode = true;
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("dryrun")) {
+			dryRun = true;
+			result = true;
+		}
+		else if(option.equalsIgnoreCase("undo")) {
+			undoMoves = true;
+			result = true;
+		}
+		return result;
+	}
+
+
+	/**
+	 * crawlImageDirectory
+	 * 
+	 * Walks the image directory and calls the fileFunc for each image file found. Sub directories are only walked if the
+	 * search is recursive. Images are found by the file extensions ImageIO can read, and with --probe by the first bytes of the other files.
+	 * The directory dups are moved to is skipped.
+	 * 
+	 * @param startDir - directory to walk.
+	 * @param dirFunc - called with each directory walked, or null.
+	 * @param fileFunc - called with the path and attributes of each image. The attributes come from the walk so no extra file system calls are needed.
+	 * @return - number of images found.
+	 */
+	private int crawlImageDirectory(Path startDir, Consumer<Path> dirFunc, BiConsumer<Path, BasicFileAttributes> fileFunc) {
+		int[] numImages = {0};
+		
+		try {
+			Files.walkFileTree(startDir, EnumSet.noneOf(FileVisitOption.class), recursive ? Integer.MAX_VALUE : 1, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					//dups moved by an earlier run are not searched again
+					if(!directoryToMoveFilesTo.isEmpty() && dir.toAbsolutePath().normalize().equals(Paths.get(directoryToMoveFilesTo))) {
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					if(dirFunc!=null) {
+						dirFunc.accept(dir);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+				
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if(attrs.isRegularFile() && isImageFile(file)) {
+						numImages[0]++;
+						fileFunc.accept(file, attrs);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+				
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) {
+					System.err.printf("Error : Could not read %s\n", file);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			System.err.printf("Error : Could not search %s. %s\n", startDir, e.getMessage());
+		}
+
+		return numImages[0];
+	}
+	
+	/**
+	 * isImageFile
+	 * 
+	 * Images are found by the file extensions ImageIO can read. With --probe a file without one is read to see if it starts with
+	 * the magic bytes of a format ImageIO can read, so images with the wrong extension or none are found.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	private boolean isImageFile(Path file) {
+		if(imageExtensions==null) {
+			Set<String> extensions = new HashSet<>();
+			for(String suffix : ImageIO.getReaderFileSuffixes()) {
+				extensions.add(suffix.toLowerCase(Locale.ROOT));
+			}
+			imageExtensions = extensions;
+		}
+		
+		String fileName = file.getFileName().toString();
+		int dot = fileName.lastIndexOf('.');
+		if(dot>0 && imageExtensions.contains(fileName.substring(dot+1).toLowerCase(Locale.ROOT))) return true;
+		if(!probeFiles) return false;
+		
+		String format = ImageHeader.sniffFormat(file);
+		return format!=null && ImageIO.getImageReadersByFormatName(format).hasNext();
+	}
+
+	private static final String CACHE_FILE_NAME = ".finddupimages.cache";
+	//The cache with --rotations has the hashes of every orientation so it is kept apart from the normal one
+	private static final String ROTATIONS_CACHE_FILE_NAME = ".finddupimages.rotations.cache";
+	//Hashes written by --shard=i/N, the shard number and the number of shards
+	private static final String SHARD_FILE_NAME = ".finddupimages.shard-%d-of-%d.cache";
+	private static final Pattern SHARD_FILE_PATTERN = Pattern.compile("\\.finddupimages\\.shard-(\\d+)-of-(\\d+)\\.cache");
+	//Number of files the crawl can get ahead of the hash workers
+	private static final int CRAWL_AHEAD = 10000;
+	//Shapes --aspect matches within when no percent is given
+	private static final int DEFAULT_ASPECT_PERCENT = 5;
+	//Written by the crawl, read by the match stage for the progress bar
+	private volatile int totalImages = 0;
+	private volatile boolean crawlFinished = false;
+	private int currentImageNum = 0;
+	private int foundInLibrary = 0;
+	
+	/**
+	 * findDupsImages
+	 * 
+	 * Find all duplicate images.
+	 * The directory is only walked once. The crawl runs on the calling thread and hands each file to a pool of hash workers 
+	 * as it is found. The queue in front of the workers is bounded so the crawl can not run too far ahead, if it fills up 
+	 * the crawl thread hashes the file itself. The total for the progress bar grows as the crawl finds files.
+	 * Finished hashes are handed to a single match thread so the hash list never needs to be locked.
+	 */
+	private void findDupsImages() {
+		File startDir = new File(directoryToSearch);
+
+		//Make sure the directory exists.
+		if(startDir.exists() && startDir.isDirectory()) {
+			System.out.printf("Searching for dups in directory %s\nUsing distance %d\n",  directoryToSearch, imageDistance);
+			if(!directoryToMoveFilesTo.isEmpty()) {
+				System.out.printf("%s duplicate images to %s\n", dryRun ? "Dry run of moving" : "Moving", directoryToMoveFilesTo); 
+				moveStage = new MoveStage(Paths.get(directoryToMoveFilesTo), startDir.toPath(), dryRun, metrics);
+			}
+		}
+		else {
+			System.out.printf("%s is does not exists or is not a directory\n", directoryToSearch);
+			return;
+		}
+		
+		if(numShards>0) {
+			System.out.printf("Hashing shard %d of %d\n", shard, numShards);
+		}
+		List<Path> shardFiles = null;
+		if(mergeShards) {
+			shardFiles = findShardFiles(startDir.toPath());
+			if(shardFiles==null) return;
+		}
+		
+		numHashes = ImageHash.numHashes(hashAlgorithm);
+		int numOrientations = findRotations ? ImageHash.NUM_ORIENTATIONS : 1;
+		//a merge reads the shard files instead of the cache
+		if(useCache && !mergeShards) {
+			if(cacheFileName.isEmpty()) {
+				String cacheName = findRotations ? ROTATIONS_CACHE_FILE_NAME : CACHE_FILE_NAME;
+				if(numShards>0) {
+					cacheName = String.format(SHARD_FILE_NAME, shard, numShards);
+				}
+				cacheFileName = startDir.toPath().resolve(cacheName).toString();
+			}
+			hashCache = new HashCache(Paths.get(cacheFileName), hashAlgorithm, numHashes*numOrientations);
+			System.out.printf("Loaded %d hashes from cache %s\n", hashCache.load(), cacheFileName);
+		}
+		
+		if(!libraryFileName.isEmpty()) {
+			hashLibrary = new HashLibrary(Paths.get(libraryFileName), hashAlgorithm);
+			if(!hashLibrary.load()) {
+				hashLibrary = null;
+				return;
+			}
+			System.out.printf("Checking against %d images in library %s\n", hashLibrary.size(), libraryFileName);
+		}
+		
+		if(!spillDirName.isEmpty()) {
+			hashJoin = ExternalHashJoin.create(Paths.get(spillDirName), imageDistance-1, numHashes, spillMemoryMB*1024L*1024L);
+			if(hashJoin==null) return;
+			findExactCopies = false;
+		}
+		
+		System.out.printf("Using %d threads%s\n", numThreads, HashKernels.isUsingVector() ? " and the Vector API" : "");
+		if(useBandIndex) {
+			hashIndex = new AspectIndex<>(()->new MultiIndexHash<>(imageDistance-1), aspectPercent/100.0);
+		}
+		else {
+			hashIndex = new AspectIndex<>(BKTree::new, aspectPercent/100.0);
+		}
+		clusters = new DuplicateClusters(numHashes*numOrientations);
+
+		if(findExactCopies) {
+			exactDuplicateFinder = new ExactDuplicateFinder();
+		}
+		
+		if(serverPort>0) {
+			lookupServer = new HashLookupServer(hashIndex, clusters, indexLock, hashLibrary, hashAlgorithm, imageDistance-1);
+		}
+
+		hashWorkers = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(CRAWL_AHEAD), new ThreadPoolExecutor.CallerRunsPolicy());
+		matchStage = newMatchStage();
+		
+		//The directories are watched before they are walked so no new image is missed. An image can be found by both, then it is hashed twice.
+		Consumer<Path> watchDir = null;
+		if(watchMode) {
+			try {
+				watcher = startDir.toPath().getFileSystem().newWatchService();
+				watchDir = this::watchDirectory;
+			} catch (IOException e) {
+				System.err.printf("Error : Could not watch %s. %s\n", directoryToSearch, e.getMessage());
+			}
+		}
+		
+		long crawlStart = System.nanoTime();
+		//normalized so the paths walked can be compared with the -M directory, ./pics would give paths with . in them
+		Path startPath = startDir.toPath().toAbsolutePath().normalize();
+		if(shardFiles!=null) {
+			mergeShardFiles(shardFiles, numHashes*numOrientations);
+		}
+		else {
+			crawlImageDirectory(startPath, watchDir, (file, attrs)->{
+				if(!inShard(startPath, file)) return;
+				totalImages++;
+				metrics.filesSeen.increment();
+				hashWorkers.execute(()->addPictureToList(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+			});
+		}
+		crawlFinished = true;
+		metrics.crawl.record(crawlStart, directoryToSearch, 0);
+		
+		//Wait for the hashing to finish before stopping the match stage so all the results are matched.
+		shutdownAndWait(hashWorkers);
+		shutdownAndWait(matchStage);
+		System.out.println("\ntotalImages checked = " + totalImages);
+		if(hashJoin!=null) {
+			joinSpilledHashes();
+		}
+		if(exactDuplicateFinder!=null) {
+			System.out.println("exact copies found without loading = " + metrics.exactCopies.sum());
+		}
+		if(hashLibrary!=null) {
+			System.out.println("images found in library = " + foundInLibrary);
+		}
+		
+		if(totalImages>0) {
+			saveHashes();
+		}
+		
+	}
+	
+	/**
+	 * inShard
+	 * 
+	 * Files are put in a shard by a hash of their path under the search directory, so every program searching the directory
+	 * puts a file in the same shard wherever the directory is mounted.
+	 * 
+	 * @param startDir - directory being searched
+	 * @param file
+	 * @return - true if the file is in the shard being hashed, or there are no shards.
+	 */
+	private boolean inShard(Path startDir, Path file) {
+		if(numShards==0) return true;
+		
+		String relativePath = startDir.relativize(file).toString().replace(File.separatorChar, '/');
+		return Math.floorMod(relativePath.hashCode(), numShards)==shard-1;
+	}
+	
+	/**
+	 * findShardFiles
+	 * 
+	 * The files given with --merge, or the shard files in the search directory. All N shards of the search must be there.
+	 * 
+	 * @param startDir
+	 * @return - null if the shard files are missing.
+	 */
+	private List<Path> findShardFiles(Path startDir) {
+		List<Path> shardFiles = new ArrayList<>();
+		if(!shardFileNames.isEmpty()) {
+			for(String fileName : shardFileNames) {
+				Path shardFile = Paths.get(fileName);
+				if(!Files.isRegularFile(shardFile)) {
+					System.err.printf("Error : Shard file %s does not exist\n", fileName);
+					return null;
+				}
+				shardFiles.add(shardFile);
+			}
+			return shardFiles;
+		}
+		
+		Map<Integer, Path> shardsFound = new TreeMap<>();
+		int shardsWanted = 0;
+		try(Stream<Path> files = Files.list(startDir)) {
+			for(Path file : (Iterable<Path>)files::iterator) {
+				Matcher matcher = SHARD_FILE_PATTERN.matcher(file.getFileName().toString());
+				if(matcher.matches()) {
+					int total = Integer.parseInt(matcher.group(2));
+					if(shardsWanted!=0 && total!=shardsWanted) {
+						System.err.printf("Error : %s has shard files of %d and %d shards. Give the files to merge with --merge=files\n", startDir, shardsWanted, total);
+						return null;
+					}
+					shardsWanted = total;
+					shardsFound.put(Integer.parseInt(matcher.group(1)), file);
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			System.err.printf("Error : Could not list the shard files in %s. %s\n", startDir, e.getMessage());
+			return null;
+		}
+		
+		if(shardsWanted==0 || shardsFound.size()!=shardsWanted) {
+			System.err.printf("Error : Found %d of the %d shard files in %s\n", shardsFound.size(), shardsWanted, startDir);
+			return null;
+		}
+		shardFiles.addAll(shardsFound.values());
+		return shardFiles;
+	}
+	
+	/**
+	 * mergeShardFiles
+	 * 
+	 * Passes the hashes in the shard files to the match stage in place of the crawl. The files are the hash caches written
+	 * by the shards so no image is loaded. Dups are found within and across the shards the same as one search would.
+	 * Like the crawl the merge can only get CRAWL_AHEAD images ahead of the match stage, so a merge bigger than memory does not
+	 * fill the match queue, see passToMatchStage.
+	 * 
+	 * @param shardFiles
+	 * @param hashesPerImage - number of hashes of each image in the files
+	 */
+	private void mergeShardFiles(List<Path> shardFiles, int hashesPerImage) {
+		for(Path shardFile : shardFiles) {
+			HashCache shardHashes = new HashCache(shardFile, hashAlgorithm, hashesPerImage);
+			int numLoaded = shardHashes.load();
+			if(numLoaded==0) {
+				System.err.printf("Error : No hashes in %s. It may have been made with a different -H or --rotations\n", shardFile);
+			}
+			System.out.printf("Merging %d hashes from %s\n", numLoaded, shardFile);
+			
+			shardHashes.forEach((path, size, modified, hashes)->{
+				totalImages++;
+				metrics.filesSeen.increment();
+				passToMatchStage(path, size, modified, hashes, false, needImageSizes() ? probeImage(Paths.get(path), size) : null);
+			});
+		}
+	}
+	
+	/**
+	 * joinSpilledHashes
+	 * 
+	 * Finds the close pairs in the hashes spilled by the match stage. Only the images in a pair are read back and added to
+	 * the clusters, in the order they were found so the keep rules work the same as without --spill. The pairs are read
+	 * back from the spill files, they are not held in memory.
+	 */
+	private void joinSpilledHashes() {
+		System.out.printf("Matching %d images spilled to %s\n", hashJoin.size(), spillDirName);
+		long start = System.nanoTime();
+		
+		boolean joined = hashJoin.join();
+		metrics.checkRejects.add(hashJoin.checkRejects());
+		metrics.blockJoinedImages = hashJoin.blockJoinedImages();
+		
+		if(joined) {
+			//in order, and the cluster id of each
+			int[] fileIds = hashJoin.pairedFileIds();
+			int[] clusterIds = new int[fileIds.length];
+			for(int i=0;i<fileIds.length;i++) {
+				int fileId = fileIds[i];
+				clusterIds[i] = clusters.add(hashJoin.getPath(fileId), hashJoin.getHashes(fileId), hashJoin.getSize(fileId), hashJoin.getModified(fileId),
+						hashJoin.getWidth(fileId), hashJoin.getHeight(fileId));
+			}
+			hashJoin.forEachPair((fileId1, fileId2)->{
+				int id = clusterIds[Arrays.binarySearch(fileIds, fileId2)];
+				int closeId = clusterIds[Arrays.binarySearch(fileIds, fileId1)];
+				clusters.union(id, closeId);
+				if(matchWriter!=null) {
+					matchWriter.write("match", clusters.getPath(id), clusters.getHash(id), clusters.getSize(id), clusters.getWidth(id), clusters.getHeight(id),
+							clusters.getPath(closeId), clusters.getHash(closeId), clusters.getSize(closeId), clusters.getWidth(closeId), clusters.getHeight(closeId));
+				}
+			});
+		}
+		
+		hashJoin.close();
+		metrics.join.record(start, spillDirName, 0);
+	}
+	
+	/**
+	 * reportMetrics
+	 * 
+	 * Writes the metrics file if there is one.
+	 * 
+	 * @param printSummary - also print the summary.
+	 */
+	private void reportMetrics(boolean printSummary) {
+		metrics.comparisons = (hashJoin!=null) ? hashJoin.comparisons() : hashIndex.comparisons();
+		if(exactDuplicateFinder!=null) {
+			metrics.bytesDigested = exactDuplicateFinder.getBytesRead();
+		}
+		
+		if(printSummary) {
+			metrics.printSummary();
+		}
+		if(!metricsFileName.isEmpty()) {
+			metrics.write(Paths.get(metricsFileName));
+		}
+	}
+	
+	/**
+	 * saveHashes
+	 * 
+	 * Saves the hash cache and the images added to the library.
+	 */
+	private void saveHashes() {
+		if(hashCache!=null && hashJoin==null) {
+			if(hashCache.save() && numShards>0) {
+				System.out.printf("Wrote the hashes of shard %d of %d to %s\n", shard, numShards, cacheFileName);
+			}
+		}
+		
+		if(hashLibrary!=null && hashLibrary.numAdded()>0) {
+			if(hashLibrary.save()) {
+				System.out.printf("Added %d images to library %s\n", hashLibrary.numAdded(), libraryFileName);
+			}
+		}
+	}
+	
+	/**
+	 * startServer
+	 * 
+	 * Starts the lookup server. It keeps the program running until it is stopped.
+	 */
+	private void startServer() {
+		try {
+			lookupServer.start(serverPort);
+			System.out.printf("Answering lookups on http://localhost:%d/\n", serverPort);
+		} catch (IOException e) {
+			System.err.printf("Error : Could not start server on port %d. %s\n", serverPort, e.getMessage());
+			lookupServer = null;
+		}
+	}
+	
+	//Seconds the moves queued when the program is stopped in watch mode are given to finish
+	private static final long SHUTDOWN_MOVE_WAIT = 10;
+	//Time a new or changed file must be left alone before it is loaded, so a file is not read while it is still being written.
+	private static final long SETTLE_TIME_MS = 100;
+	
+	/**
+	 * watchDirectory
+	 * 
+	 * Registers the directory with the watch service.
+	 * 
+	 * @param dir
+	 */
+	private void watchDirectory(Path dir) {
+		try {
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			System.err.printf("Error : Could not watch %s. %s\n", dir, e.getMessage());
+		}
+	}
+	
+	/**
+	 * watchForImages
+	 * 
+	 * Runs until the program is stopped. New and changed images in the watched directories are hashed by the hash workers
+	 * and matched against everything found so far, the same as during the search. Duplicates are printed, and moved,
+	 * as soon as they are matched. The hash index is kept in memory so each new image only costs one load and one search.
+	 * A file is only loaded once no events have been seen for it for SETTLE_TIME_MS. New sub directories are watched when
+	 * the search is recursive, the images already in them are checked too.
+	 * Deleted files are not removed from the index.
+	 */
+	private void watchForImages() {
+		hashWorkers = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(CRAWL_AHEAD), new ThreadPoolExecutor.CallerRunsPolicy());
+		matchStage = newMatchStage();
+		watching = true;
+		
+		//Save the hashes when the program is stopped.
+		Runtime.getRuntime().addShutdownHook(new Thread(()->{
+			hashWorkers.shutdownNow();
+			matchStage.shutdownNow();
+			if(moveStage!=null) {
+				moveStage.finish(SHUTDOWN_MOVE_WAIT);
+			}
+			saveHashes();
+			reportMetrics(false);
+			if(matchWriter!=null) {
+				matchWriter.close();
+			}
+		}));
+		
+		System.out.printf("Watching %s for new images\n", directoryToSearch);
+		
+		Path moveDir = directoryToMoveFilesTo.isEmpty() ? null : Paths.get(directoryToMoveFilesTo);
+		//files with events, and the time of their last event
+		Map<Path, Long> settlingFiles = new HashMap<>();
+		
+		try {
+			while(true) {
+				WatchKey key = settlingFiles.isEmpty() ? watcher.take() : watcher.poll(SETTLE_TIME_MS, TimeUnit.MILLISECONDS);
+				
+				while(key!=null) {
+					Path dir = (Path)key.watchable();
+					
+					for(WatchEvent<?> event : key.pollEvents()) {
+						if(event.kind()==StandardWatchEventKinds.OVERFLOW) {
+							System.err.printf("Error : Too many changes in %s, some new images were missed\n", dir);
+							continue;
+						}
+						
+						Path file = dir.resolve((Path)event.context());
+						if(moveDir!=null && file.startsWith(moveDir)) continue;
+						
+						if(event.kind()==StandardWatchEventKinds.ENTRY_CREATE && recursive && Files.isDirectory(file)) {
+							crawlImageDirectory(file, this::watchDirectory, (newFile, attrs)->settlingFiles.put(newFile, System.currentTimeMillis()));
+						}
+						else if(probeFiles || isImageFile(file)) {
+							//files are only probed once they have settled
+							settlingFiles.put(file, System.currentTimeMillis());
+						}
+					}
+					
+					if(!key.reset()) {
+						//directory was deleted
+						key.cancel();
+					}
+					key = watcher.poll();
+				}
+				
+				long now = System.currentTimeMillis();
+				Iterator<Map.Entry<Path, Long>> settling = settlingFiles.entrySet().iterator();
+				while(settling.hasNext()) {
+					Map.Entry<Path, Long> entry = settling.next();
+					if(now-entry.getValue()>=SETTLE_TIME_MS) {
+						settling.remove();
+						checkNewImage(entry.getKey());
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * checkNewImage
+	 * 
+	 * Passes a new or changed image to the hash workers.
+	 * 
+	 * @param file
+	 */
+	private void checkNewImage(Path file) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			if(attrs.isRegularFile() && isImageFile(file)) {
+				totalImages++;
+				metrics.filesSeen.increment();
+				hashWorkers.execute(()->addPictureToList(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+			}
+		} catch (IOException e) {
+			//the file was removed before it could be read
+		}
+	}
+	
+	/**
+	 * newMatchStage
+	 * 
+	 * The single match thread. Its queue can be looked at to tell when it has caught up.
+	 * 
+	 * @return
+	 */
+	private ThreadPoolExecutor newMatchStage() {
+		return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+	}
+	
+	/**
+	 * shutdownAndWait
+	 * 
+	 * Stops the executor from taking new work and waits for the queued work to finish.
+	 * 
+	 * @param executor
+	 */
+	private void shutdownAndWait(ExecutorService executor) {
+		executor.shutdown();
+		try {
+			while(!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				//keep waiting
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * addPictureToList
+	 * 
+	 * loads the picture and creates the hash for the image. The picture is only decoded at the resolution the hash needs.
+	 * If the file has not changed since it was put in the hash cache the cached hash is used and the image is not loaded.
+	 * If the file is a byte for byte copy of another image it gets the hash of that image and is not loaded either.
+	 * The header of the image is read before it is loaded. A file with the extension of a format ImageHeader knows that does not
+	 * start like one is not an image, and is not loaded. With --aspect, --keep=resolution or --format the header of images in the cache is read too.
+	 * Runs on the hash workers. The result is passed on to the match stage.
+	 *  
+	 * @param file
+	 * @param fileSize
+	 * @param fileModified
+	 */
+	private void addPictureToList(Path file, long fileSize, long fileModified) {
+		String fileFullPath = file.toString();
+		
+		long[] cachedHashes = null;
+		if(hashCache!=null) {
+			long start = System.nanoTime();
+			cachedHashes = hashCache.lookup(fileFullPath, fileSize, fileModified);
+			metrics.cacheLookup.record(start, fileFullPath, fileSize);
+		}
+		if(cachedHashes!=null) {
+			metrics.cacheHits.increment();
+			if(exactDuplicateFinder!=null) {
+				exactDuplicateFinder.add(file, fileSize, cachedHashes);
+			}
+			passToMatchStage(fileFullPath, fileSize, fileModified, cachedHashes, false, needImageSizes() ? probeImage(file, fileSize) : null);
+			return;
+		}
+		
+		ImageHeader header = probeImage(file, fileSize);
+		if(header==null && ImageHeader.isProbedExtension(file)) {
+			metrics.notImages.increment();
+			return;
+		}
+		
+		if(exactDuplicateFinder!=null) {
+			long start = System.nanoTime();
+			boolean isCopy = exactDuplicateFinder.checkForCopy(file, fileSize, (copy, original, hashes)->{
+				if(hashCache!=null) {
+					hashCache.put(fileFullPath, fileSize, fileModified, hashes);
+				}
+				passToMatchStage(fileFullPath, fileSize, fileModified, hashes, true, header);
+			});
+			metrics.exactCheck.record(start, fileFullPath, fileSize);
+			if(isCopy) return;
+		}
+		
+		long decodeStart = System.nanoTime();
+    	BufferedImage displayImage = ImageUtils.loadImageForHash(fileFullPath, ImageHash.MIN_SOURCE_SIZE, useThumbnails, ImageHash.MIN_THUMBNAIL_SIZE);
+    	metrics.decode.record(decodeStart, fileFullPath, fileSize);
+    	if(displayImage!=null) {
+    		metrics.bytesDecoded.add(fileSize);
+    		long hashStart = System.nanoTime();
+    		long[] imageHashes = findRotations ? imageHash.hashImageOrientations(displayImage, hashAlgorithm) : imageHash.hashImageAll(displayImage, hashAlgorithm);
+    		metrics.hash.record(hashStart, fileFullPath, fileSize);
+    		if(hashCache!=null && hashJoin==null) {
+    			hashCache.put(fileFullPath, fileSize, fileModified, imageHashes);
+    		}
+    		//The original goes to the match stage before the copies waiting for its hash so it gets the lower id
+    		passToMatchStage(fileFullPath, fileSize, fileModified, imageHashes, false, header);
+    		if(exactDuplicateFinder!=null) {
+    			exactDuplicateFinder.setHash(file, fileSize, imageHashes);
+    		}
+    	}
+    	else {
+    		metrics.decodeFailures.increment();
+    		if(exactDuplicateFinder!=null) {
+    			exactDuplicateFinder.hashFailed(file, fileSize);
+    		}
+    	}
+	}
+	
+	/**
+	 * The image sizes are needed for --aspect, to keep the largest resolution and to write the matches. Images that are not
+	 * loaded, the cached ones and the merged ones, only have their header read for these.
+	 */
+	private boolean needImageSizes() {
+		return aspectPercent>0 || keepRule==DuplicateClusters.KEEP_RESOLUTION || matchWriter!=null;
+	}
+	
+	/**
+	 * probeImage
+	 * 
+	 * Reads the header of the image, timed as the probe stage.
+	 * 
+	 * @param file
+	 * @param fileSize
+	 * @return - the header, or null if the file is not an image ImageHeader knows.
+	 */
+	private ImageHeader probeImage(Path file, long fileSize) {
+		long start = System.nanoTime();
+		ImageHeader header = ImageHeader.probe(file);
+		metrics.probe.record(start, file.toString(), fileSize);
+		return header;
+	}
+	
+	/**
+	 * passToMatchStage
+	 * 
+	 * Hands the hash to the match stage. When checking against a library the library is searched here on the hash worker,
+	 * the mapped library can be read from many threads, and only the matches are passed on.
+	 * Waits when CRAWL_AHEAD images are already waiting for the match stage. Each image takes a permit that the match stage
+	 * gives back when it is done with the image. Never called from the match stage, it would wait for itself.
+	 * 
+	 * @param fileFullPath
+	 * @param fileSize
+	 * @param fileModified
+	 * @param imageHashes - from ImageHash.hashImageAll, or hashImageOrientations with --rotations
+	 * @param exactCopy - true if the hash came from a byte for byte copy.
+	 * @param header - of the image, or null if it was not read.
+	 */
+	private void passToMatchStage(String fileFullPath, long fileSize, long fileModified, long[] imageHashes, boolean exactCopy, ImageHeader header) {
+		//in the order they were found so the matches are written in that order
+		Set<Integer> libraryMatches = new LinkedHashSet<>();
+		if(hashLibrary!=null) {
+			long start = System.nanoTime();
+			for(int orientation=0;orientation*numHashes<imageHashes.length;orientation++) {
+				int offset = orientation*numHashes;
+				hashLibrary.search(imageHashes[offset], imageDistance-1, record->{
+					//an image that is already in the library is not a dup of itself
+					if(hashLibrary.getPath(record).equals(fileFullPath)) return;
+					if(offset>0 && libraryMatches.contains(record)) return;
+					if(passesChecks(imageHashes, offset, hash->hashLibrary.getHash(record, hash))) {
+						libraryMatches.add(record);
+					}
+				});
+			}
+			metrics.library.record(start, fileFullPath, fileSize);
+			if(libraryMatches.isEmpty() && addToLibrary) {
+				hashLibrary.add(fileFullPath, fileSize, fileModified, imageHashes);
+			}
+		}
+		
+		aheadOfMatch.acquireUninterruptibly();
+		matchStage.execute(()->{
+			try {
+				currentImageNum++;
+				if(exactCopy) metrics.exactCopies.increment();
+				if(!watching) {
+					printProgressBar(currentImageNum, totalImages, crawlFinished);
+				}
+				long start = System.nanoTime();
+				if(hashJoin!=null) {
+					hashJoin.add(fileFullPath, imageHashes, fileSize, fileModified, (header!=null) ? header.getWidth() : 0, (header!=null) ? header.getHeight() : 0);
+				}
+				else if(numShards>0) {
+					//a shard only hashes, the dups are found by the merge
+				}
+				else if(libraryMatches.isEmpty()) {
+					addHashToList(fileFullPath, imageHashes, fileSize, fileModified, header);
+				}
+				else {
+					addLibraryMatches(fileFullPath, imageHashes, fileSize, header, libraryMatches);
+				}
+				metrics.match.record(start, fileFullPath, fileSize);
+			
+				//Only flush when the match stage has caught up so a fast run is not slowed down by lots of small writes.
+				if(matchWriter!=null && matchStage.getQueue().isEmpty()) {
+					matchWriter.flush();
+				}
+			}
+			finally {
+				aheadOfMatch.release();
+			}
+		});
+	}
+	
+	/**
+	 * addLibraryMatches
+	 * 
+	 * Adds the image as a possible dup of each library image it is close to. Only called from the match stage.
+	 * The library images are added to the hash list the first time they match so printDups shows them like any other image.
+	 * 
+	 * @param fileFullPath
+	 * @param imageHashes
+	 * @param fileSize
+	 * @param header - of the image, or null if it was not read.
+	 * @param libraryMatches - record numbers of the close library images.
+	 */
+	private void addLibraryMatches(String fileFullPath, long[] imageHashes, long fileSize, ImageHeader header, Set<Integer> libraryMatches) {
+		foundInLibrary++;
+		
+		for(int record : libraryMatches) {
+			ImageHashInfo libraryInfo = libraryImages.get(record);
+			if(libraryInfo==null) {
+				libraryInfo = new ImageHashInfo(hashLibrary.getPath(record), hashLibrary.getHash(record));
+				libraryImages.put(record, libraryInfo);
+				listImageHashInfo.add(libraryInfo);
+			}
+			libraryInfo.possibleDups.add(new ImageHashInfo(fileFullPath, imageHashes[0]));
+			reportDup(libraryInfo.filename, fileFullPath);
+			if(matchWriter!=null) {
+				matchWriter.write("match", fileFullPath, ImageHash.closestOrientation(imageHashes, numHashes, libraryInfo.imageHash), fileSize,
+						(header!=null) ? header.getWidth() : 0, (header!=null) ? header.getHeight() : 0,
+						libraryInfo.filename, libraryInfo.imageHash, hashLibrary.getSize(record), MatchWriter.SIZE_NOT_READ, MatchWriter.SIZE_NOT_READ);
+			}
+		}
+		
+		moveDuplicateImage(fileFullPath);
+	}
+
+	/**
+	 * 
+	 * Adds the hash to the hash list. Only called from the match stage. The image is joined to the group of every image it is close to.
+	 * The close images are found with the hash index so the whole list is not scanned. Every image is added to the index so
+	 * chains of close images end up in one group.
+	 * When watching the dup is printed and moved straight away.
+	 * With the cascade hash the close images found by the first hash are only dups if the other hashes are close too.
+	 * With --rotations the index is searched with each orientation of the image. Only the image as it is goes in the index.
+	 * With --aspect only images of the same shape are searched, the orientations turned on their side search the shape turned too.
+	 * @param fileFullPath
+	 * @param imageHashes
+	 * @param fileSize
+	 * @param fileModified
+	 * @param header - of the image, or null if it was not read.
+	 */
+	private void addHashToList(String fileFullPath, long[] imageHashes, long fileSize, long fileModified, ImageHeader header) {
+		long imageHashValue = imageHashes[0];
+		int width = (header!=null) ? header.getWidth() : 0;
+		int height = (header!=null) ? header.getHeight() : 0;
+		int id;
+		indexLock.writeLock().lock();
+		try {
+			id = clusters.add(fileFullPath, imageHashes, fileSize, fileModified, width, height);
+		}
+		finally {
+			indexLock.writeLock().unlock();
+		}
+		
+		//see if the hash is already there.
+		boolean foundDup = false;
+		for(int offset=0;offset<imageHashes.length;offset+=numHashes) {
+			boolean turned = ImageHash.isTransposed(offset/numHashes);
+			int searchWidth = turned ? height : width;
+			int searchHeight = turned ? width : height;
+			for(int closeId : hashIndex.search(imageHashes[offset], searchWidth, searchHeight, imageDistance-1)) {
+				//a changed or twice found file in watch mode is not a dup of itself
+				if(clusters.samePath(closeId, id)) continue;
+				if(!hashIndex.isClose(searchWidth, searchHeight, clusters.getWidth(closeId), clusters.getHeight(closeId))) continue;
+				//already found with an earlier orientation, or through another image
+				if(offset>0 && clusters.first(closeId)==clusters.first(id)) continue;
+				if(!passesChecks(imageHashes, offset, hash->clusters.getHash(closeId, hash))) continue;
+				
+				if(watching && !foundDup) {
+					//a moved image is no longer at its path, the image kept in its place is the original
+					int original = movedImages.getOrDefault(closeId, closeId);
+					reportDup(clusters.getPath(original), fileFullPath);
+					if(moveDuplicateImage(fileFullPath)) {
+						movedImages.put(id, original);
+					}
+					foundDup = true;
+				}
+				clusters.union(id, closeId);
+				if(matchWriter!=null) {
+					matchWriter.write("match", fileFullPath, imageHashes[offset], fileSize, width, height,
+							clusters.getPath(closeId), clusters.getHash(closeId), clusters.getSize(closeId), clusters.getWidth(closeId), clusters.getHeight(closeId));
+				}
+			}
+		}
+		
+		indexLock.writeLock().lock();
+		try {
+			hashIndex.add(imageHashValue, width, height, id);
+		}
+		finally {
+			indexLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * passesChecks
+	 * 
+	 * Checks a close image with the rest of the hashes, the ones after the first. It stops at the first hash that is too far.
+	 * Images with only one hash always pass.
+	 * 
+	 * @param imageHashes - hashes of the new image
+	 * @param offset - start of the hashes of the orientation of the new image that found the close image
+	 * @param otherHash - gives each hash of the close image
+	 * @return
+	 */
+	private boolean passesChecks(long[] imageHashes, int offset, IntToLongFunction otherHash) {
+		for(int hash=1;hash<numHashes;hash++) {
+			if(Long.bitCount(imageHashes[offset+hash]^otherHash.applyAsLong(hash))>imageDistance-1) {
+				metrics.checkRejects.increment();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * reportDup
+	 * 
+	 * Prints the dup straight away when watching. Otherwise the dups are printed at the end by printDups.
+	 * 
+	 * @param originalPath - image the dup is close to.
+	 * @param fileFullPath - the dup
+	 */
+	private void reportDup(String originalPath, String fileFullPath) {
+		if(watching && matchWriter==null) {
+			System.out.println(originalPath);
+			System.out.println("\t> " + fileFullPath);
+		}
+	}
+
+	/***
+	 * moveDuplicateImage
+	 * 
+	 * Queues the image file to be moved by the move stage, if there is a directory to move dups to.
+	 * 
+	 * @param fileFullPath
+	 * @return - true if the file will be moved.
+	 */
+	private boolean moveDuplicateImage(String fileFullPath) {
+		return moveStage!=null && moveStage.move(fileFullPath);
+	}
+
+	/**
+	 * imageExtsSupported
+	 * 
+	 * Show support image files.
+	 * @return
+	 */
+	private String imageExtsSupported() {
+		String exts = "";
+		
+		System.out.println("\n\tImages supported:");
+		imageList = ImageIO.getReaderMIMETypes();
+		for(String type : imageList) {
+			System.out.println("\t\t" + type);
+		}
+		
+		return exts;
+	}
+
+	/**
+	 * Show progress
+	 * @param index
+	 * @param maxIndex
+	 * @param maxIndexFinal - false if the crawl is still finding files so maxIndex can still grow.
+	 */
+	private void printProgressBar(int index, int maxIndex, boolean maxIndexFinal) {
+		String cursorAnimation = "|/-\\|/-\\";
+		int maxTicks = 60; //Number of ticks for the progress bar
+		char tickChar = '*';
+		String cursorLeft = ""+(char)(8); //Ascii backspace
+
+		int percent = (int)(((long)index*100)/maxIndex); 
+
+		int numStars = (int)(((long)index*maxTicks)/maxIndex); 
+		char cursorChar = cursorAnimation.charAt((index)%cursorAnimation.length());
+		
+		if(percent==100) cursorChar=tickChar;
+		
+		String precentStr = "Images Processed : [" + repeat(""+tickChar, numStars) + cursorChar + repeat(" ", maxTicks-numStars-1)+"] " + percent + "% of " + maxIndex + (maxIndexFinal ? " " : "+");
+		System.out.print(precentStr);
+		
+		//Move the cursor to the beginning of the line. This seems to be platform agnostic. Tried on windows cmd, linux, windows cygwin and window power shell. 
+		System.out.print(repeat(cursorLeft, precentStr.length()));
+		
+	}
+	
+	/**
+	 * 
+	 * Simple repeat function to build string.
+	 * @param string
+	 * @param numRepeat
+	 * @return
+	 */
+	private String repeat(String string, int numRepeat) {
+		String out = "";
+		for(int i=0;i<numRepeat;i++) {
+			out += string;
+		}
+		return out;
+	}
+
+
+
+}
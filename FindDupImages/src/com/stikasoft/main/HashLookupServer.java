@@ -0,0 +1,278 @@
+package com.stikasoft.main;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import com.stikasoft.imageutils.AspectIndex;
+import com.stikasoft.imageutils.DuplicateClusters;
+import com.stikasoft.imageutils.HashLibrary;
+import com.stikasoft.imageutils.ImageHash;
+import com.stikasoft.imageutils.ImageUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/***
+ * HashLookupServer
+ *
+ * Local HTTP service that answers "have we seen this image?" from the hashes in memory. It only listens on the loopback address.
+ *
+ *   POST /image?distance=n  body is an image file. The image is hashed and the close images are returned.
+ *   GET  /hash?hash=hex&distance=n  looks up a 64 bit hash given as 16 hex digits.
+ *
+ * distance is optional, the default is the distance the program searches with. It is also the largest a request can ask for,
+ * the band index is laid out for it and larger searches would enumerate most of each band. The answer is JSON :
+ *   {"hash":"...","matches":[{"file":"...","hash":"...","distance":n}, ...]}
+ *
+ * The server searches the index the match stage uses, there is no second copy of it. Every image found by the program is in
+ * it so a lookup also finds the dups, not just the first image of each group. Images that matched the library are found
+ * through the library, which is searched too.
+ * Lookups only take the read lock of the index so they run at the same time as each other. The match stage takes the write
+ * lock to add images while the server runs in watch mode.
+ * With the cascade hash only the first hash is searched, the matches are not checked with the other hashes.
+ *
+ * Requests are handled on virtual threads when the JVM has them, otherwise on a pool of threads.
+ *
+ * @author Carl Stika
+ *
+ */
+class HashLookupServer {
+
+	private static final int MAX_IMAGE_SIZE = 64*1024*1024;
+	private static final int THREADS_PER_CORE = 4;
+
+	private AspectIndex<Integer> index;
+	private DuplicateClusters clusters;
+	private ReadWriteLock indexLock;
+	private HashLibrary hashLibrary;
+	private ImageHash imageHash = new ImageHash();
+	private int hashAlgorithm;
+	//distance the index was built for, the default and the largest a request can ask for
+	private int maxDistance;
+	private HttpServer server;
+	private ExecutorService handlers;
+
+	/**
+	 *
+	 * @param index - the match index, the ids of the images in the clusters.
+	 * @param clusters - the path and hash of each image.
+	 * @param indexLock - held for writing by the match stage while it adds to the index or the clusters.
+	 * @param hashLibrary - library to search too, or null.
+	 * @param hashAlgorithm - hash used for uploaded images. See ImageHash.
+	 * @param maxDistance - distance the index was built for. Used when a request does not give one, and the largest one can ask for.
+	 */
+	HashLookupServer(AspectIndex<Integer> index, DuplicateClusters clusters, ReadWriteLock indexLock, HashLibrary hashLibrary, int hashAlgorithm, int maxDistance) {
+		this.index = index;
+		this.clusters = clusters;
+		this.indexLock = indexLock;
+		this.hashLibrary = hashLibrary;
+		this.hashAlgorithm = hashAlgorithm;
+		this.maxDistance = maxDistance;
+	}
+
+	/**
+	 * start
+	 *
+	 * Starts listening. The server runs on its own threads.
+	 *
+	 * @param port
+	 * @throws IOException - if the port can not be used.
+	 */
+	void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		handlers = newHandlerExecutor(Runtime.getRuntime().availableProcessors()*THREADS_PER_CORE);
+		server.setExecutor(handlers);
+		server.createContext("/image", this::handleImage);
+		server.createContext("/hash", this::handleHash);
+		server.start();
+	}
+
+	/**
+	 * stop
+	 *
+	 * Stops the server. Requests being handled are given a second to finish.
+	 */
+	void stop() {
+		if(server!=null) {
+			server.stop(1);
+			handlers.shutdown();
+		}
+	}
+
+	/**
+	 * Virtual threads came after the Java this is built with, so they are looked up by name.
+	 */
+	private static ExecutorService newHandlerExecutor(int threads) {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
+
+	private void handleImage(HttpExchange exchange) throws IOException {
+		try {
+			if(!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+				sendError(exchange, 405, "use POST with the image file as the body");
+				return;
+			}
+
+			Map<String, String> params = parseQuery(exchange);
+			if(params==null) {
+				sendError(exchange, 400, "query has a bad % escape");
+				return;
+			}
+			int distance = parseDistance(params.get("distance"));
+			if(distance<0) {
+				sendError(exchange, 400, "distance must be 0 to " + maxDistance);
+				return;
+			}
+
+			byte[] imageData;
+			try(InputStream body = exchange.getRequestBody()) {
+				imageData = body.readNBytes(MAX_IMAGE_SIZE+1);
+			}
+			if(imageData.length>MAX_IMAGE_SIZE) {
+				sendError(exchange, 413, "image is too large");
+				return;
+			}
+
+			BufferedImage image = ImageUtils.loadImageForHash(imageData, ImageHash.MIN_SOURCE_SIZE);
+			if(image==null) {
+				sendError(exchange, 415, "body is not an image that can be read");
+				return;
+			}
+
+			sendMatches(exchange, imageHash.hashImage(image, hashAlgorithm), distance);
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private void handleHash(HttpExchange exchange) throws IOException {
+		try {
+			Map<String, String> params = parseQuery(exchange);
+			if(params==null) {
+				sendError(exchange, 400, "query has a bad % escape");
+				return;
+			}
+			int distance = parseDistance(params.get("distance"));
+			if(distance<0) {
+				sendError(exchange, 400, "distance must be 0 to " + maxDistance);
+				return;
+			}
+
+			String hashParam = params.get("hash");
+			long hash;
+			try {
+				if(hashParam==null || hashParam.isEmpty() || hashParam.length()>16) throw new NumberFormatException();
+				hash = Long.parseUnsignedLong(hashParam, 16);
+			}
+			catch(NumberFormatException e) {
+				sendError(exchange, 400, "hash must be up to 16 hex digits");
+				return;
+			}
+
+			sendMatches(exchange, hash, distance);
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Searches the index and the library and sends the close images.
+	 */
+	private void sendMatches(HttpExchange exchange, long hash, int distance) throws IOException {
+		StringBuilder json = new StringBuilder(256);
+		json.append("{\"hash\":\"").append(ImageHash.hashToString(hash)).append("\",\"matches\":[");
+
+		List<String> matches = new ArrayList<>();
+		indexLock.readLock().lock();
+		try {
+			//the size of the image is not known so every shape is searched
+			for(int id : index.search(hash, 0, 0, distance)) {
+				matches.add(matchJson(clusters.getPath(id), clusters.getHash(id), hash));
+			}
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+		if(hashLibrary!=null) {
+			hashLibrary.search(hash, distance, record->matches.add(matchJson(hashLibrary.getPath(record), hashLibrary.getHash(record), hash)));
+		}
+
+		json.append(String.join(",", matches)).append("]}");
+		send(exchange, 200, json.toString());
+	}
+
+	private static String matchJson(String filename, long matchHash, long hash) {
+		return "{\"file\":" + MatchWriter.jsonString(filename) + ",\"hash\":\"" + ImageHash.hashToString(matchHash)
+				+ "\",\"distance\":" + Long.bitCount(matchHash^hash) + "}";
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		send(exchange, status, "{\"error\":" + MatchWriter.jsonString(message) + "}");
+	}
+
+	private static void send(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * @return - the distance, the default if there is none, or -1 if it is not valid.
+	 */
+	private int parseDistance(String distanceParam) {
+		if(distanceParam==null) return maxDistance;
+
+		try {
+			int distance = Integer.parseInt(distanceParam);
+			return (distance>=0 && distance<=maxDistance) ? distance : -1;
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return - the query parameters, or null if one can not be decoded.
+	 */
+	private static Map<String, String> parseQuery(HttpExchange exchange) {
+		Map<String, String> params = new HashMap<>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if(query==null) return params;
+
+		try {
+			for(String param : query.split("&")) {
+				int equalsSign = param.indexOf('=');
+				if(equalsSign>0) {
+					params.put(URLDecoder.decode(param.substring(0, equalsSign), StandardCharsets.UTF_8),
+							URLDecoder.decode(param.substring(equalsSign+1), StandardCharsets.UTF_8));
+				}
+			}
+		}
+		catch(IllegalArgumentException e) {
+			//a % that is not followed by two hex digits
+			return null;
+		}
+		return params;
+	}
+}
@@ -0,0 +1,185 @@
+package com.stikasoft.main;
+
+import java.awt.Dimension;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import com.stikasoft.imageutils.ImageHash;
+import com.stikasoft.imageutils.ImageUtils;
+
+/***
+ * MatchWriter
+ *
+ * Writes the matches in a format other programs can read, as they are found, so the results can be used while a long search is still running.
+ * Every line is one pair of images :
+ *   match - written by the match stage as soon as a file is found to be close to another.
+ *   group - written at the end for each dup in the final groups, with the image kept as the match.
+ *
+ * JSON Lines has one JSON object on each line. CSV has a header line then one line for each pair.
+ * With --rotations the hash of the file is the hash of the orientation of it that is closest to the match, so the distance is the one it matched at.
+ * The resolution of the images is the size the match stage already has from the image headers. Only the images whose size is not known,
+ * a format ImageHeader does not read, have their header read when a pair is written. The library does not keep the sizes of its
+ * images so they are written as -1 x -1 without reading them. Nothing is kept for each image.
+ *
+ * Only used by one thread at a time.
+ *
+ * @author Carl Stika
+ *
+ */
+class MatchWriter {
+
+	public static final int FORMAT_TEXT = 0;
+	public static final int FORMAT_JSONL = 1;
+	public static final int FORMAT_CSV = 2;
+
+	//Width and height of an image whose size is not known and is not to be read, written as -1
+	public static final int SIZE_NOT_READ = -1;
+
+	private static final String CSV_HEADER = "type,file,match,distance,file_hash,match_hash,file_size,match_size,file_width,file_height,match_width,match_height";
+	private static final int BUFFER_SIZE = 64*1024;
+
+	private BufferedWriter out;
+	private int format;
+	private boolean failed = false;
+	//something was written since the last flush
+	private boolean written = false;
+
+	/**
+	 *
+	 * @param out - where to write. It is buffered here.
+	 * @param format - FORMAT_JSONL or FORMAT_CSV
+	 */
+	MatchWriter(Writer out, int format) {
+		this.out = new BufferedWriter(out, BUFFER_SIZE);
+		this.format = format;
+
+		if(format==FORMAT_CSV) {
+			writeLine(CSV_HEADER);
+		}
+	}
+
+	/**
+	 * write
+	 *
+	 * Writes one pair of images.
+	 *
+	 * @param type - "match" or "group"
+	 * @param file - the dup
+	 * @param fileHash
+	 * @param fileSize
+	 * @param fileWidth - of the image, 0 if it is not known.
+	 * @param fileHeight - of the image, 0 if it is not known.
+	 * @param match - the image it is close to
+	 * @param matchHash
+	 * @param matchSize
+	 * @param matchWidth - of the image, 0 if it is not known, SIZE_NOT_READ to not read it.
+	 * @param matchHeight - of the image, 0 if it is not known, SIZE_NOT_READ to not read it.
+	 */
+	void write(String type, String file, long fileHash, long fileSize, int fileWidth, int fileHeight,
+			String match, long matchHash, long matchSize, int matchWidth, int matchHeight) {
+		Dimension fileResolution = resolution(file, fileWidth, fileHeight);
+		Dimension matchResolution = resolution(match, matchWidth, matchHeight);
+		int distance = Long.bitCount(fileHash^matchHash);
+
+		if(format==FORMAT_CSV) {
+			writeLine(type + "," + csvString(file) + "," + csvString(match) + "," + distance
+					+ "," + ImageHash.hashToString(fileHash) + "," + ImageHash.hashToString(matchHash)
+					+ "," + fileSize + "," + matchSize
+					+ "," + fileResolution.width + "," + fileResolution.height + "," + matchResolution.width + "," + matchResolution.height);
+		}
+		else {
+			writeLine("{\"type\":\"" + type + "\",\"file\":" + jsonString(file) + ",\"match\":" + jsonString(match) + ",\"distance\":" + distance
+					+ ",\"file_hash\":\"" + ImageHash.hashToString(fileHash) + "\",\"match_hash\":\"" + ImageHash.hashToString(matchHash)
+					+ "\",\"file_size\":" + fileSize + ",\"match_size\":" + matchSize
+					+ ",\"file_width\":" + fileResolution.width + ",\"file_height\":" + fileResolution.height
+					+ ",\"match_width\":" + matchResolution.width + ",\"match_height\":" + matchResolution.height + "}");
+		}
+	}
+
+	/**
+	 * The size given, or read from the header of the image if it is not known. -1 x -1 if it can not be read or is not to be read.
+	 */
+	private static Dimension resolution(String path, int width, int height) {
+		if(width>0 && height>0) return new Dimension(width, height);
+		if(width==SIZE_NOT_READ || height==SIZE_NOT_READ) return new Dimension(-1, -1);
+
+		Dimension resolution = ImageUtils.readImageSize(path);
+		return (resolution!=null) ? resolution : new Dimension(-1, -1);
+	}
+
+	private void writeLine(String line) {
+		if(failed) return;
+
+		try {
+			out.write(line);
+			out.write('\n');
+			written = true;
+		} catch (IOException e) {
+			System.err.printf("Error : Could not write the matches. %s\n", e.getMessage());
+			failed = true;
+		}
+	}
+
+	/**
+	 * flush
+	 *
+	 * Writes out what is in the buffer so a program reading the output sees it.
+	 */
+	void flush() {
+		if(failed || !written) return;
+
+		try {
+			written = false;
+			out.flush();
+		} catch (IOException e) {
+			System.err.printf("Error : Could not write the matches. %s\n", e.getMessage());
+			failed = true;
+		}
+	}
+
+	void close() {
+		flush();
+		try {
+			out.close();
+		} catch (IOException e) {
+			//already reported by flush
+		}
+	}
+
+	private static String csvString(String value) {
+		if(value.indexOf(',')<0 && value.indexOf('"')<0 && value.indexOf('\n')<0 && value.indexOf('\r')<0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Quotes the string for JSON.
+	 */
+	static String jsonString(String value) {
+		StringBuilder quoted = new StringBuilder(value.length()+2);
+		quoted.append('"');
+		for(int i=0;i<value.length();i++) {
+			char c = value.charAt(i);
+			switch(c) {
+				case '"':
+					quoted.append("\\\"");
+					break;
+				case '\\':
+					quoted.append("\\\\");
+					break;
+				default:
+					if(c<0x20) {
+						quoted.append(String.format("\\u%04x", (int)c));
+					}
+					else {
+						quoted.append(c);
+					}
+					break;
+			}
+		}
+		quoted.append('"');
+		return quoted.toString();
+	}
+}
@@ -0,0 +1,333 @@
+package com.stikasoft.main;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * MoveStage
+ *
+ * Moves the dups to the move directory on its own threads so slow file systems do not hold up the match stage.
+ * Each dup keeps its path relative to the search directory under the move directory, so files with the same name
+ * in different directories do not collide. If the file is already there from an earlier run a number is added to the name.
+ *
+ * A move is a rename when the move directory is on the same file system, otherwise the file is copied and the original deleted.
+ * Every move is written to a journal in the move directory, as the original path and the new path separated by a tab,
+ * so the moves can be undone with undo. A dry run prints the moves and does not touch any file.
+ *
+ * @author Carl Stika
+ *
+ */
+class MoveStage {
+
+	static final String JOURNAL_FILE_NAME = ".finddupimages.journal";
+	//Moves are mostly waiting on the file system, so a few more threads than a disk needs helps on network drives
+	private static final int MOVE_THREADS = 4;
+	//Largest number added to a name before giving up on a file
+	private static final int MAX_RENAMES = 1000;
+
+	private Path moveDir;
+	private Path searchDir;
+	private boolean dryRun;
+	private PipelineMetrics metrics;
+	private ExecutorService movers = Executors.newFixedThreadPool(MOVE_THREADS);
+	//Every file passed to move, so a file is only moved once
+	private Set<Path> queued = ConcurrentHashMap.newKeySet();
+	//Opened by the first move
+	private BufferedWriter journal;
+	private boolean journalFailed = false;
+
+	/**
+	 *
+	 * @param moveDir - directory to move the dups to.
+	 * @param searchDir - directory that was searched. The dups keep their path relative to it.
+	 * @param dryRun - only print what would be moved.
+	 * @param metrics - the moves are timed in the move stage.
+	 */
+	MoveStage(Path moveDir, Path searchDir, boolean dryRun, PipelineMetrics metrics) {
+		this.moveDir = moveDir.toAbsolutePath().normalize();
+		this.searchDir = searchDir.toAbsolutePath().normalize();
+		this.dryRun = dryRun;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * move
+	 *
+	 * Queues the file to be moved. Returns straight away.
+	 *
+	 * @param fileFullPath
+	 * @return - false if the file has already been queued.
+	 */
+	boolean move(String fileFullPath) {
+		Path file = Paths.get(fileFullPath).toAbsolutePath().normalize();
+		if(!queued.add(file)) return false;
+
+		movers.execute(()->moveFile(file));
+		return true;
+	}
+
+	/**
+	 * finish
+	 *
+	 * Waits for the queued moves and closes the journal.
+	 *
+	 * @param timeoutSeconds - longest time to wait.
+	 */
+	void finish(long timeoutSeconds) {
+		movers.shutdown();
+		try {
+			if(!movers.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+				System.err.printf("Error : Gave up waiting for the dups to be moved\n");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized(this) {
+			if(journal!=null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					System.err.printf("Error : Could not write journal. %s\n", e.getMessage());
+				}
+				journal = null;
+			}
+		}
+	}
+
+	/**
+	 * Path of the file under the move directory.
+	 */
+	private Path targetPath(Path file) {
+		Path relative;
+		if(file.startsWith(searchDir)) {
+			relative = searchDir.relativize(file);
+		}
+		else {
+			//not in the search directory, keep the whole path
+			relative = (file.getRoot()!=null) ? file.getRoot().relativize(file) : file;
+		}
+		return moveDir.resolve(relative.toString());
+	}
+
+	/**
+	 * Adds -n before the extension of the file name.
+	 */
+	private static Path numberedPath(Path target, int number) {
+		if(number==0) return target;
+
+		String name = target.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String numbered = (dot>0) ? name.substring(0, dot) + "-" + number + name.substring(dot) : name + "-" + number;
+		return target.resolveSibling(numbered);
+	}
+
+	private void moveFile(Path file) {
+		long start = System.nanoTime();
+		Path target = targetPath(file);
+
+		if(dryRun) {
+			int number = 0;
+			while(Files.exists(numberedPath(target, number)) && number<MAX_RENAMES) number++;
+			System.out.printf("Would move %s to %s\n", file, numberedPath(target, number));
+			return;
+		}
+
+		try {
+			Files.createDirectories(target.getParent());
+
+			//The target is made first so two moves, or an earlier run, can not end up with the same file name
+			Path reserved = null;
+			for(int number=0;reserved==null && number<=MAX_RENAMES;number++) {
+				try {
+					reserved = Files.createFile(numberedPath(target, number));
+				} catch (FileAlreadyExistsException e) {
+					//try the next number
+				}
+			}
+			if(reserved==null) {
+				throw new FileAlreadyExistsException(target.toString());
+			}
+
+			try {
+				moveReplacing(file, reserved);
+			} catch (IOException e) {
+				Files.deleteIfExists(reserved);
+				throw e;
+			}
+
+			writeJournal(file, reserved);
+		} catch (NoSuchFileException e) {
+			metrics.moveFailures.increment();
+			System.err.printf("Error : Moving %s. File no longer exists\n", file);
+		} catch (IOException e) {
+			metrics.moveFailures.increment();
+			System.err.printf("Error : Moving %s to %s. %s\n", file, target, e.getMessage());
+		}
+		metrics.move.record(start, file.toString(), 0);
+	}
+
+	/**
+	 * Renames the file over the target, or copies it when they are on different file systems.
+	 */
+	private static void moveReplacing(Path file, Path target) throws IOException {
+		try {
+			Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Each line is flushed so the journal is complete if the program is stopped.
+	 */
+	private synchronized void writeJournal(Path file, Path target) {
+		if(journalFailed) return;
+
+		try {
+			if(journal==null) {
+				journal = Files.newBufferedWriter(moveDir.resolve(JOURNAL_FILE_NAME), StandardCharsets.UTF_8,
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+			journal.write(escape(file.toString()) + "\t" + escape(target.toString()) + "\n");
+			journal.flush();
+		} catch (IOException e) {
+			System.err.printf("Error : Could not write journal, the moves can not be undone. %s\n", e.getMessage());
+			journalFailed = true;
+		}
+	}
+
+	/**
+	 * undo
+	 *
+	 * Moves the files in the journal of the move directory back, the last move first. Files that are back, or are gone, are taken
+	 * out of the journal. A file is not moved back if there is a file in its old place.
+	 *
+	 * @param moveDir
+	 * @param dryRun - only print what would be moved back.
+	 * @return - number of files moved back.
+	 */
+	static int undo(Path moveDir, boolean dryRun) {
+		Path journalFile = moveDir.resolve(JOURNAL_FILE_NAME);
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			System.err.printf("Error : There is no journal in %s\n", moveDir);
+			return 0;
+		} catch (IOException e) {
+			System.err.printf("Error : Could not read journal %s. %s\n", journalFile, e.getMessage());
+			return 0;
+		}
+
+		int numUndone = 0;
+		List<String> remaining = new ArrayList<>();
+		for(int i=lines.size()-1;i>=0;i--) {
+			String line = lines.get(i);
+			int tab = line.indexOf('\t');
+			if(tab<0) continue;
+
+			Path file = Paths.get(unescape(line.substring(0, tab)));
+			Path target = Paths.get(unescape(line.substring(tab+1)));
+			if(!Files.exists(target)) {
+				System.err.printf("Error : %s is no longer in %s\n", file.getFileName(), moveDir);
+				continue;
+			}
+			if(Files.exists(file)) {
+				System.err.printf("Error : Not moving %s back. %s exists\n", target, file);
+				remaining.add(line);
+				continue;
+			}
+
+			if(dryRun) {
+				System.out.printf("Would move %s back to %s\n", target, file);
+				remaining.add(line);
+				continue;
+			}
+
+			try {
+				Files.createDirectories(file.getParent());
+				try {
+					Files.move(target, file, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(target, file);
+				}
+				numUndone++;
+			} catch (IOException e) {
+				System.err.printf("Error : Moving %s back to %s. %s\n", target, file, e.getMessage());
+				remaining.add(line);
+			}
+		}
+
+		if(!dryRun) {
+			try {
+				if(remaining.isEmpty()) {
+					Files.delete(journalFile);
+				}
+				else {
+					//back in the order they were moved
+					List<String> ordered = new ArrayList<>();
+					for(int i=remaining.size()-1;i>=0;i--) {
+						ordered.add(remaining.get(i));
+					}
+					Files.write(journalFile, ordered, StandardCharsets.UTF_8);
+				}
+			} catch (IOException e) {
+				System.err.printf("Error : Could not update journal %s. %s\n", journalFile, e.getMessage());
+			}
+		}
+
+		return numUndone;
+	}
+
+	/**
+	 * Paths can have tabs and new lines in them, they are written as \t and \n.
+	 */
+	private static String escape(String path) {
+		return path.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String path) {
+		StringBuilder unescaped = new StringBuilder(path.length());
+		for(int i=0;i<path.length();i++) {
+			char c = path.charAt(i);
+			if(c=='\\' && i+1<path.length()) {
+				char next = path.charAt(++i);
+				switch(next) {
+					case 't':
+						unescaped.append('\t');
+						break;
+					case 'n':
+						unescaped.append('\n');
+						break;
+					case 'r':
+						unescaped.append('\r');
+						break;
+					default:
+						unescaped.append(next);
+						break;
+				}
+			}
+			else {
+				unescaped.append(c);
+			}
+		}
+		return unescaped.toString();
+	}
+}
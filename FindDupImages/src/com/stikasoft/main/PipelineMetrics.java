@@ -0,0 +1,286 @@
+package com.stikasoft.main;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/***
+ * PipelineMetrics
+ *
+ * Timers and counters for each stage of the search, to find out where the time of a slow run goes.
+ * The counters are LongAdders so the hash workers can update them without fighting over a cache line.
+ * Each stage keeps a histogram of its times in power of two buckets, so a few slow files show up even when the average is good.
+ *
+ * The metrics are printed at the end of the run and can be written to a file as JSON or in the Prometheus text format.
+ * The moves are timed on the move threads, they are not part of the match stage.
+ * With --spill the match stage only writes the hashes out, the matching is timed as the join stage.
+ * Each stage also emits a JFR event, with the file, when a flight recording is running. Start one with
+ * -XX:StartFlightRecording and look for the FindDupImages events.
+ *
+ * @author Carl Stika
+ *
+ */
+class PipelineMetrics {
+
+	/***
+	 * StageEvent
+	 *
+	 * JFR event for one file going through one stage.
+	 */
+	@Name("com.stikasoft.FindDupImages.Stage")
+	@Label("Image Stage")
+	@Category("FindDupImages")
+	@Description("One file going through one stage of the duplicate search")
+	static class StageEvent extends Event {
+		@Label("Stage")
+		String stage;
+
+		@Label("File")
+		String file;
+
+		@Label("Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+
+		@Label("File Size")
+		@DataAmount
+		long fileSize;
+	}
+
+	//Buckets are 1us, 2us, 4us ... up to 2^(NUM_BUCKETS-2) us, the last bucket has everything larger.
+	private static final int NUM_BUCKETS = 26;
+
+	/***
+	 * StageTimer
+	 *
+	 * Count, total time and time histogram of one stage.
+	 */
+	static class StageTimer {
+		private String name;
+		private LongAdder count = new LongAdder();
+		private LongAdder totalNanos = new LongAdder();
+		private LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+		private LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+
+		StageTimer(String name) {
+			this.name = name;
+			for(int i=0;i<NUM_BUCKETS;i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		/**
+		 * record
+		 *
+		 * Records a stage that started at startNanos and has just finished.
+		 *
+		 * @param startNanos - System.nanoTime() when the stage started.
+		 * @param file - file that went through the stage, or null.
+		 * @param fileSize - size of the file, or 0.
+		 */
+		void record(long startNanos, String file, long fileSize) {
+			long nanos = System.nanoTime()-startNanos;
+
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+			buckets[bucket(nanos)].increment();
+
+			StageEvent event = new StageEvent();
+			if(event.isEnabled()) {
+				event.stage = name;
+				event.file = file;
+				event.time = nanos;
+				event.fileSize = fileSize;
+				event.commit();
+			}
+		}
+
+		private static int bucket(long nanos) {
+			long micros = (nanos+999)/1000;
+			if(micros<=1) return 0;
+			return Math.min(NUM_BUCKETS-1, 64-Long.numberOfLeadingZeros(micros-1));
+		}
+
+		/**
+		 * @return - upper bound in micro seconds of the bucket, or -1 for the last bucket.
+		 */
+		private static long bucketLimitMicros(int bucket) {
+			return (bucket==NUM_BUCKETS-1) ? -1 : 1L<<bucket;
+		}
+
+		/**
+		 * Time the fraction of the stages took less than, from the histogram. It is the top of the bucket so it can be up to 2 times too large.
+		 */
+		private long percentileNanos(double fraction) {
+			long total = count.sum();
+			long wanted = (long)Math.ceil(total*fraction);
+			long seen = 0;
+			for(int i=0;i<NUM_BUCKETS-1;i++) {
+				seen += buckets[i].sum();
+				if(seen>=wanted) return Math.min(bucketLimitMicros(i)*1000, maxNanos.get());
+			}
+			return maxNanos.get();
+		}
+	}
+
+	//Stages in the order a file goes through them
+	StageTimer crawl = new StageTimer("crawl");
+	StageTimer cacheLookup = new StageTimer("cache");
+	StageTimer probe = new StageTimer("probe");
+	StageTimer exactCheck = new StageTimer("exact");
+	StageTimer decode = new StageTimer("decode");
+	StageTimer hash = new StageTimer("hash");
+	StageTimer library = new StageTimer("library");
+	StageTimer match = new StageTimer("match");
+	StageTimer move = new StageTimer("move");
+	StageTimer join = new StageTimer("join");
+	private StageTimer[] stages = {crawl, cacheLookup, probe, exactCheck, decode, hash, library, match, move, join};
+
+	LongAdder filesSeen = new LongAdder();
+	LongAdder bytesDecoded = new LongAdder();
+	LongAdder decodeFailures = new LongAdder();
+	//files with an image extension whose header is not an image, they are not decoded
+	LongAdder notImages = new LongAdder();
+	LongAdder cacheHits = new LongAdder();
+	LongAdder exactCopies = new LongAdder();
+	//close images the cascade hash checks turned down
+	LongAdder checkRejects = new LongAdder();
+	LongAdder moveFailures = new LongAdder();
+	//Set at the end from the parts that count these themselves
+	long bytesDigested = 0;
+	long comparisons = 0;
+	//images the spill join compared a block at a time from disk because too many had the same band value
+	long blockJoinedImages = 0;
+
+	/**
+	 * printSummary
+	 *
+	 * Prints the counters and a line for each stage that ran.
+	 */
+	void printSummary() {
+		System.out.println("\nFiles seen " + filesSeen.sum() + ", cache hits " + cacheHits.sum() + ", exact copies " + exactCopies.sum()
+				+ ", decode failures " + decodeFailures.sum() + ", not images " + notImages.sum() + ", move failures " + moveFailures.sum());
+		System.out.printf("Bytes decoded %s, bytes read to find copies %s, hash comparisons %d, turned down by hash checks %d\n",
+				sizeString(bytesDecoded.sum()), sizeString(bytesDigested), comparisons, checkRejects.sum());
+		if(blockJoinedImages>0) {
+			System.out.printf("Images in band groups too big for memory, joined a block at a time %d\n", blockJoinedImages);
+		}
+		System.out.printf("%-8s %10s %12s %12s %12s %12s\n", "Stage", "Count", "Total ms", "Mean us", "p99 us", "Max us");
+		for(StageTimer stage : stages) {
+			long count = stage.count.sum();
+			if(count==0) continue;
+
+			long total = stage.totalNanos.sum();
+			System.out.printf(Locale.ROOT, "%-8s %10d %12.1f %12.1f %12d %12d\n", stage.name, count, total/1e6, total/1e3/count,
+					stage.percentileNanos(0.99)/1000, stage.maxNanos.get()/1000);
+		}
+	}
+
+	private static String sizeString(long bytes) {
+		if(bytes<1024*1024) return (bytes/1024) + "K";
+		return (bytes/(1024*1024)) + "M";
+	}
+
+	/**
+	 * write
+	 *
+	 * Writes the metrics to the file. Files ending in .json are written as JSON, anything else in the Prometheus text format.
+	 *
+	 * @param file
+	 * @return - false if the file could not be written.
+	 */
+	boolean write(Path file) {
+		List<String> lines = file.toString().toLowerCase(Locale.ROOT).endsWith(".json") ? toJson() : toPrometheus();
+
+		try(PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+			for(String line : lines) {
+				out.print(line);
+				out.print('\n');
+			}
+		} catch (IOException e) {
+			System.err.printf("Error : Could not write metrics to %s. %s\n", file, e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	private String[][] counters() {
+		return new String[][] {
+			{"files_seen", ""+filesSeen.sum()},
+			{"bytes_decoded", ""+bytesDecoded.sum()},
+			{"bytes_digested", ""+bytesDigested},
+			{"decode_failures", ""+decodeFailures.sum()},
+			{"not_images", ""+notImages.sum()},
+			{"cache_hits", ""+cacheHits.sum()},
+			{"exact_copies", ""+exactCopies.sum()},
+			{"check_rejects", ""+checkRejects.sum()},
+			{"move_failures", ""+moveFailures.sum()},
+			{"hash_comparisons", ""+comparisons},
+			{"block_joined_images", ""+blockJoinedImages},
+		};
+	}
+
+	private List<String> toJson() {
+		List<String> lines = new ArrayList<>();
+		lines.add("{");
+		lines.add("  \"counters\": {");
+		String[][] counters = counters();
+		for(int i=0;i<counters.length;i++) {
+			lines.add("    \"" + counters[i][0] + "\": " + counters[i][1] + ((i<counters.length-1) ? "," : ""));
+		}
+		lines.add("  },");
+		lines.add("  \"stages\": {");
+		for(int s=0;s<stages.length;s++) {
+			StageTimer stage = stages[s];
+			StringBuilder buckets = new StringBuilder();
+			for(int i=0;i<NUM_BUCKETS;i++) {
+				if(i>0) buckets.append(", ");
+				long limit = StageTimer.bucketLimitMicros(i);
+				buckets.append("{\"le_us\": ").append((limit<0) ? "null" : ""+limit).append(", \"count\": ").append(stage.buckets[i].sum()).append("}");
+			}
+			lines.add("    \"" + stage.name + "\": {\"count\": " + stage.count.sum() + ", \"total_ns\": " + stage.totalNanos.sum()
+					+ ", \"max_ns\": " + stage.maxNanos.get() + ", \"buckets\": [" + buckets + "]}" + ((s<stages.length-1) ? "," : ""));
+		}
+		lines.add("  }");
+		lines.add("}");
+		return lines;
+	}
+
+	private List<String> toPrometheus() {
+		List<String> lines = new ArrayList<>();
+		for(String[] counter : counters()) {
+			lines.add("# TYPE finddupimages_" + counter[0] + "_total counter");
+			lines.add("finddupimages_" + counter[0] + "_total " + counter[1]);
+		}
+
+		lines.add("# TYPE finddupimages_stage_seconds histogram");
+		for(StageTimer stage : stages) {
+			long cumulative = 0;
+			for(int i=0;i<NUM_BUCKETS;i++) {
+				cumulative += stage.buckets[i].sum();
+				long limit = StageTimer.bucketLimitMicros(i);
+				String le = (limit<0) ? "+Inf" : String.format(Locale.ROOT, "%g", limit/1e6);
+				lines.add("finddupimages_stage_seconds_bucket{stage=\"" + stage.name + "\",le=\"" + le + "\"} " + cumulative);
+			}
+			lines.add("finddupimages_stage_seconds_sum{stage=\"" + stage.name + "\"} " + String.format(Locale.ROOT, "%.9f", stage.totalNanos.sum()/1e9));
+			lines.add("finddupimages_stage_seconds_count{stage=\"" + stage.name + "\"} " + stage.count.sum());
+		}
+		return lines;
+	}
+}